@@ -0,0 +1,195 @@
+import benchmarks.Workload;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs one ImageManipulator operation for benchmarks.ImageManipulatorBenchmark on
+ * a synthetic image, so the benchmarks need no input files.
+ */
+public class ImageManipulatorWorkload implements Workload {
+    /** Longest sides of the "thumbnails" operation */
+    private static final int[] THUMBNAIL_SIZES = { 1024, 512, 256, 128 };
+
+    /** Operations that write their result over the input image */
+    private static final Set<String> IN_PLACE = new HashSet<>(Arrays.asList(
+            "grayscale", "invert", "sepia", "sepia-fast", "sepia-region", "bw", "rotate-inplace", "instagram",
+            "hue", "saturation", "lightness"));
+
+    private String operation;
+    private Img image;
+    private int[] original;
+    private boolean inPlace;
+    private File file;
+    private SaveOptions saveOptions;
+
+    @Override
+    public void Setup(String operation, int width, int height) throws IOException {
+        this.operation = operation;
+        inPlace = IN_PLACE.contains(operation);
+        image = SyntheticImage(width, height);
+        original = image.GetPixels().clone();
+        saveOptions = EncodeOptions(operation);
+        if (operation.equals("load") || operation.equals("save")) {
+            file = File.createTempFile("benchmark", ".png");
+            ImageManipulator.SaveImage(image, file.getPath());
+        }
+        else if (operation.equals("load-raw")) {
+            file = File.createTempFile("benchmark", ".raw");
+            ImageManipulator.SaveImage(image, file.getPath(), SaveOptions.Raw());
+        }
+        else if (saveOptions != null) {
+            file = File.createTempFile("benchmark", "." + saveOptions.GetExtension());
+        }
+    }
+
+    @Override
+    public void Reset() {
+        if (!inPlace) {
+            return;
+        }
+        System.arraycopy(original, 0, image.GetPixels(), 0, original.length);
+    }
+
+    @Override
+    public Object Run() throws IOException {
+        switch (operation) {
+            case "grayscale": return ImageManipulator.ConvertToGrayScale(image);
+            case "invert": return ImageManipulator.InvertImage(image);
+            case "sepia": return ImageManipulator.ConvertToSepia(image);
+            case "sepia-fast": return ImageManipulator.ConvertToSepia(image, true);
+            case "sepia-region": return ImageManipulator.ConvertToSepia(image, false, CenterQuarter(image), ExecutionMode.Sequential());
+            case "bw": return ImageManipulator.ConvertToBW(image);
+            case "rotate": return ImageManipulator.RotateImage(image);
+            case "rotate-naive": return NaiveRotate(image);
+            case "rotate-inplace": return ImageManipulator.RotateImage(image, 90, true);
+            case "instagram": return ImageManipulator.InstagramFilter(image);
+            case "hue": return ImageManipulator.SetHue(image, 200);
+            case "saturation": return ImageManipulator.SetSaturation(image, .2);
+            case "lightness": return ImageManipulator.SetLightness(image, .5);
+            case "load": return ImageManipulator.LoadImage(file.getPath());
+            case "load-raw": return ImageManipulator.LoadImage(file.getPath());
+            case "resize-scaled-instance": return ScaledInstance(image, java.awt.Image.SCALE_DEFAULT);
+            case "resize-scaled-instance-smooth": return ScaledInstance(image, java.awt.Image.SCALE_SMOOTH);
+            case "resize-box": return Resize(image, Resampler.Kernel.BOX, ExecutionMode.Sequential());
+            case "resize-bilinear": return Resize(image, Resampler.Kernel.BILINEAR, ExecutionMode.Sequential());
+            case "resize-lanczos": return Resize(image, Resampler.Kernel.LANCZOS, ExecutionMode.Sequential());
+            case "resize-lanczos-parallel": return Resize(image, Resampler.Kernel.LANCZOS, ExecutionMode.Parallel());
+            case "thumbnails": return ImageManipulator.CreateThumbnails(image, THUMBNAIL_SIZES,
+                    Resampler.Kernel.LANCZOS, ExecutionMode.Sequential());
+            case "save": {
+                ImageManipulator.SaveImage(image, file.getPath());
+                return file;
+            }
+            default: {
+                if (saveOptions == null) {
+                    throw new IllegalArgumentException("Unknown operation: " + operation);
+                }
+                ImageManipulator.SaveImage(image, file.getPath(), saveOptions);
+                return file;
+            }
+        }
+    }
+
+    @Override
+    public void TearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Encoder settings for the "save-..." operations of benchmarks.EncodeBenchmark
+     * @return the settings, or null if the operation isn't one of them
+     */
+    static SaveOptions EncodeOptions(String operation) {
+        switch (operation) {
+            case "save-png": return SaveOptions.Png();
+            case "save-png-level-1": return SaveOptions.Png().SetCompressionLevel(1);
+            case "save-png-level-9": return SaveOptions.Png().SetCompressionLevel(9);
+            case "save-png-up": return SaveOptions.Png().SetFilter(SaveOptions.PngFilter.UP);
+            case "save-png-paeth": return SaveOptions.Png().SetFilter(SaveOptions.PngFilter.PAETH);
+            case "save-png-fast": return SaveOptions.FastPng();
+            case "save-raw": return SaveOptions.Raw();
+            case "save-png-stored": return SaveOptions.Png().SetFilter(SaveOptions.PngFilter.NONE).SetCompressionLevel(0);
+            case "save-jpeg-90": return SaveOptions.Jpeg(0.9f);
+            case "save-jpeg-75": return SaveOptions.Jpeg(0.75f);
+            case "save-jpeg-90-progressive": return SaveOptions.Jpeg(0.9f).SetProgressive(true);
+            default: return null;
+        }
+    }
+
+    /**
+     * The middle of the image, a quarter of its pixels, for the "...-region" operations
+     */
+    static Region CenterQuarter(Img image) {
+        return Region.Rectangle(image.GetWidth() / 4, image.GetHeight() / 4, image.GetWidth() / 2, image.GetHeight() / 2);
+    }
+
+    /**
+     * Resizes to the display height, the way paint draws an image
+     */
+    static Img Resize(Img image, Resampler.Kernel kernel, ExecutionMode mode) {
+        return ImageManipulator.ResizeImage(image, DisplayWidth(image), Img.DEFAULT_DISPLAY_HEIGHT, kernel, mode);
+    }
+
+    static int DisplayWidth(Img image) {
+        return (int) (Img.DEFAULT_DISPLAY_HEIGHT * image.GetWidth() / (double) image.GetHeight());
+    }
+
+    /**
+     * Scales to the display height with BufferedImage.getScaledInstance and draws the
+     * result, which is how Img.paint used to scale. SCALE_DEFAULT picks the nearest
+     * pixel, SCALE_SMOOTH averages areas. This is the baseline Resampler is compared
+     * against.
+     */
+    static BufferedImage ScaledInstance(Img image, int hints) {
+        int width = DisplayWidth(image);
+        int height = Img.DEFAULT_DISPLAY_HEIGHT;
+        BufferedImage source = Img.NewIntImage(image.GetWidth(), image.GetHeight(), false, image.GetReadOnlyPixels());
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.drawImage(source.getScaledInstance(width, height, hints), 0, 0, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    /**
+     * Rotates 90 degrees clockwise one pixel at a time, reading rows and writing
+     * columns. This is the baseline the blocked RotateImage is compared against.
+     */
+    static Img NaiveRotate(Img image) {
+        Img rotated = new Img(image.GetHeight(), image.GetWidth());
+        for (int y = 0; y < image.GetHeight(); y++) {
+            for (int x = 0; x < image.GetWidth(); x++) {
+                rotated.SetRGB(image.GetHeight() - 1 - y, x, image.GetRGB(x, y));
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * Creates a photo-like image: smooth gradients with some noise on top, so that
+     * it has a realistic number of distinct colors and compresses like a photo
+     */
+    static Img SyntheticImage(int width, int height) {
+        Img image = new Img(width, height);
+        int[] pixels = image.GetPixels();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, x * 240 / width + random.nextInt(16));
+                int g = Math.min(255, y * 240 / height + random.nextInt(16));
+                int b = Math.min(255, (x + y) * 240 / (width + height) + random.nextInt(16));
+                pixels[y * width + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+}
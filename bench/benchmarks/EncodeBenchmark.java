@@ -0,0 +1,44 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+
+/**
+ * Compares the time SaveImage takes with different SaveOptions: ImageIO's PNG
+ * writer at its default and explicit compression levels, PngEncoder with fixed
+ * filters, the fast PNG mode, the raw format of RawImage, and JPEG. The score is
+ * saves per second; the size of the file each setting writes is printed at the end
+ * of its trial.
+ */
+@Warmup(iterations = 2, time = 4)
+@Measurement(iterations = 5, time = 4)
+public class EncodeBenchmark extends WorkloadBenchmark {
+    @Param({"save-png", "save-png-level-1", "save-png-level-9", "save-png-up", "save-png-paeth",
+            "save-png-fast", "save-png-stored", "save-raw", "save-jpeg-90", "save-jpeg-75", "save-jpeg-90-progressive"})
+    public String operation;
+
+    /** 0.5 and 12 megapixels */
+    @Param({"816x612", "4000x3000"})
+    public String size;
+
+    private File output;
+
+    @Benchmark
+    public Object Run(Throughput throughput) throws Exception {
+        throughput.megapixels += GetMegapixels();
+        output = (File) RunWorkload();
+        return output;
+    }
+
+    @Override
+    protected void Report() {
+        if (output != null) {
+            System.out.println();
+            System.out.println(String.format("%s %s: %.2f MB per file", operation, size, output.length() / 1e6));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures every ImageManipulator operation, plus LoadImage and SaveImage, on
+ * synthetic images of several sizes. The score is calls per second, and the
+ * "megapixels" counter is the same throughput in megapixels per second. Run with
+ * "-prof gc" to see the allocation rate.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ImageManipulatorBenchmark extends WorkloadBenchmark {
+    @Param({"grayscale", "invert", "sepia", "sepia-fast", "sepia-region", "bw", "rotate", "instagram",
+            "hue", "saturation", "lightness", "load", "load-raw", "save"})
+    public String operation;
+
+    /** 0.5, 12 and 48 megapixels */
+    @Param({"816x612", "4000x3000", "8000x6000"})
+    public String size;
+
+    @Benchmark
+    public Object Run(Throughput throughput) throws Exception {
+        throughput.megapixels += GetMegapixels();
+        return RunWorkload();
+    }
+}
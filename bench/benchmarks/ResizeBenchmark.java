@@ -0,0 +1,31 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares scaling an image to the 800 pixel display height with
+ * BufferedImage.getScaledInstance ("resize-scaled-instance", and
+ * "resize-scaled-instance-smooth" for area averaging), which Img.paint used on
+ * every repaint, against Resampler's kernels, and times making four thumbnails
+ * of one image ("thumbnails").
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResizeBenchmark extends WorkloadBenchmark {
+    @Param({"resize-scaled-instance", "resize-scaled-instance-smooth", "resize-box", "resize-bilinear", "resize-lanczos",
+            "resize-lanczos-parallel", "thumbnails"})
+    public String operation;
+
+    /** 12 and 48 megapixel photos */
+    @Param({"4000x3000", "8000x6000"})
+    public String size;
+
+    @Benchmark
+    public Object Run(Throughput throughput) throws Exception {
+        throughput.megapixels += GetMegapixels();
+        return RunWorkload();
+    }
+}
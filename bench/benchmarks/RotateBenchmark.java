@@ -0,0 +1,28 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a 90 degree rotation done one GetRGB/SetRGB at a time ("rotate-naive")
+ * with the blocked RotateImage into a new image ("rotate") and in place
+ * ("rotate-inplace") on large square images.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RotateBenchmark extends WorkloadBenchmark {
+    @Param({"rotate-naive", "rotate", "rotate-inplace"})
+    public String operation;
+
+    /** 16 and 64 megapixels */
+    @Param({"4096x4096", "8192x8192"})
+    public String size;
+
+    @Benchmark
+    public Object Run(Throughput throughput) throws Exception {
+        throughput.megapixels += GetMegapixels();
+        return RunWorkload();
+    }
+}
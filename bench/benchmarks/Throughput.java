@@ -0,0 +1,15 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts processed megapixels; JMH reports it as a rate. It is a class of its own
+ * because JMH cannot refer to a state class nested in a benchmark's superclass.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    public double megapixels;
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+/**
+ * Bridge between the JMH benchmarks and the project classes. JMH only accepts
+ * benchmarks in a named package, while the project classes live in the default
+ * package, which named packages cannot refer to. The implementations live in the
+ * default package and are loaded by name, once, during setup.
+ */
+public interface Workload {
+    /**
+     * Creates the synthetic input for an operation
+     * @param operation name of the operation to run
+     * @param width width of the input image
+     * @param height height of the input image
+     * @throws Exception
+     */
+    void Setup(String operation, int width, int height) throws Exception;
+
+    /**
+     * Restores the input to its original pixels, outside of the measured time. Does
+     * nothing for operations that leave their input alone.
+     */
+    void Reset();
+
+    /**
+     * Runs the operation once
+     * @return the result, so JMH can consume it
+     * @throws Exception
+     */
+    Object Run() throws Exception;
+
+    /**
+     * Deletes any temporary files
+     */
+    void TearDown();
+}
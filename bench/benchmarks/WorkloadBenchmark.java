@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of the benchmarks that run an ImageManipulatorWorkload. A subclass declares
+ * an "operation" and a "size" (such as "4000x3000") @Param, plus a @Benchmark that
+ * adds GetMegapixels() to the Throughput counter and calls RunWorkload().
+ *
+ * Filters that write over their input get the original pixels back before every
+ * call. Their output is no fair input: after one call, bw leaves an image of two
+ * values whose median bin holds half the pixels, and hue, saturation, sepia and
+ * instagram converge on a few colours that the lookup tables and caches favour.
+ * The reset runs outside the measured time. Like any per-invocation fixture it
+ * adds a couple of timestamps to each call, well under a percent of the fastest
+ * one here (invert at 0.5 megapixels, about 0.2 ms), and it leaves a small input
+ * in the cache, so those scores are for an image that was just written, as after
+ * decoding. Operations that leave their input alone skip the copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public abstract class WorkloadBenchmark {
+    private Workload workload;
+    private double megapixels;
+
+    @Setup(Level.Trial)
+    public void SetupTrial(BenchmarkParams params) throws Exception {
+        String[] dimensions = params.getParam("size").split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        megapixels = width * (double) height / 1e6;
+        workload = (Workload) Class.forName("ImageManipulatorWorkload").getDeclaredConstructor().newInstance();
+        workload.Setup(params.getParam("operation"), width, height);
+    }
+
+    @Setup(Level.Invocation)
+    public void SetupInvocation() {
+        workload.Reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void TearDownTrial() {
+        Report();
+        workload.TearDown();
+    }
+
+    /**
+     * @return megapixels in one input image
+     */
+    protected double GetMegapixels() {
+        return megapixels;
+    }
+
+    /**
+     * Runs the operation once
+     * @return the result, so JMH can consume it
+     * @throws Exception
+     */
+    protected Object RunWorkload() throws Exception {
+        return workload.Run();
+    }
+
+    /**
+     * Prints anything worth knowing about the trial, before its files are deleted
+     */
+    protected void Report() {
+    }
+}
@@ -0,0 +1,123 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+public class BatchMain {
+    private static final String USAGE =
+            "Usage: BatchMain --input <directory or glob> --output <directory> --ops <steps>\n"
+            + "                 [--threads <files filtered at once>] [--io-threads <n>] [--in-flight <files>]\n"
+            + "                 [--parallel-filters] [--format png|jpg|raw] [--fast-png] [--compression <0-9>]\n"
+            + "                 [--png-filter none|sub|up|average|paeth|adaptive] [--quality <0-1>] [--progressive]\n"
+            + "                 [--metrics] [--no-pool]\n"
+            + "  steps: comma separated list of grayscale, invert, sepia, sepia-fast, bw, rotate,\n"
+            + "         instagram, hue=<0-359>, saturation=<0-1>, lightness=<0-1>\n"
+            + "  example: --ops sepia,saturation=0.2,lightness=0.5";
+
+    /**
+     * BatchMain applies a list of operations to every image in a directory without
+     * opening any window, then prints per-file and total timings. It exits with a
+     * non-zero status if any file failed.
+     */
+    public static void main(String[] args) throws Exception {
+        // no AWT window is ever opened, so don't require a display
+        System.setProperty("java.awt.headless", "true");
+
+        String input = null;
+        String output = null;
+        String ops = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = -1;
+        int inFlight = -1;
+        boolean parallelFilters = false;
+        SaveOptions saveOptions = SaveOptions.Png();
+        boolean fastPng = false;
+        int compression = -1;
+        SaveOptions.PngFilter pngFilter = null;
+        float quality = -1;
+        boolean progressive = false;
+        boolean metrics = false;
+        boolean pool = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--input": input = Next(args, ++i); break;
+                case "--output": output = Next(args, ++i); break;
+                case "--ops": ops = Next(args, ++i); break;
+                case "--threads": threads = Integer.parseInt(Next(args, ++i)); break;
+                case "--io-threads": ioThreads = Integer.parseInt(Next(args, ++i)); break;
+                case "--in-flight": inFlight = Integer.parseInt(Next(args, ++i)); break;
+                case "--parallel-filters": parallelFilters = true; break;
+                case "--format": saveOptions = SaveOptions.Of(Next(args, ++i)); break;
+                case "--fast-png": fastPng = true; break;
+                case "--compression": compression = Integer.parseInt(Next(args, ++i)); break;
+                case "--png-filter":
+                    pngFilter = SaveOptions.PngFilter.valueOf(Next(args, ++i).toUpperCase(Locale.ROOT));
+                    break;
+                case "--quality": quality = Float.parseFloat(Next(args, ++i)); break;
+                case "--progressive": progressive = true; break;
+                case "--metrics": metrics = true; break;
+                case "--no-pool": pool = false; break;
+                default: Fail("Unknown argument: " + args[i]);
+            }
+        }
+        if (input == null || output == null || ops == null) {
+            Fail("--input, --output and --ops are required");
+        }
+
+        if (fastPng) {
+            saveOptions = SaveOptions.FastPng();
+        }
+        if (compression >= 0) {
+            saveOptions.SetCompressionLevel(compression);
+        }
+        if (pngFilter != null) {
+            saveOptions.SetFilter(pngFilter);
+        }
+        saveOptions.SetQuality(quality).SetProgressive(progressive);
+
+        List<Path> inputs = BatchProcessor.FindInputs(input);
+        if (inputs.isEmpty()) {
+            Fail("No images found for " + input);
+        }
+        ExecutionMode filterMode = parallelFilters ? ExecutionMode.Parallel() : ExecutionMode.Sequential();
+        BatchProcessor processor = new BatchProcessor(inputs, FilterPipeline.Parse(ops), Paths.get(output),
+                threads, ioThreads > 0 ? ioThreads : threads, inFlight > 0 ? inFlight : 2 * threads, filterMode);
+        processor.SetSaveOptions(saveOptions);
+
+        if (metrics) {
+            Metrics.SetEnabled(true);
+        }
+        // every file's pixels are released after saving, so a batch can reuse them
+        PixelBufferPool.SetEnabled(pool);
+        long start = System.nanoTime();
+        List<BatchProcessor.FileResult> results = processor.Run();
+        BatchProcessor.PrintReport(results, System.nanoTime() - start, System.out);
+        processor.PrintStageReport(System.out);
+        if (pool) {
+            System.out.println(PixelBufferPool.Report());
+        }
+        if (metrics) {
+            System.out.println();
+            Metrics.PrintReport(System.out);
+        }
+
+        for (BatchProcessor.FileResult result : results) {
+            if (result.GetError() != null) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String Next(String[] args, int i) {
+        if (i >= args.length) {
+            Fail("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static void Fail(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,299 @@
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * BatchProcessor runs a FilterPipeline over many images without any UI. Each file
+ * is loaded, transformed and saved in the output directory, as a PNG unless other
+ * SaveOptions are set, under its own name with the new extension added, so that
+ * photo.jpg becomes photo.jpg.png. Files go
+ * through a PipelinedExecutor, so some are being decoded and encoded while others
+ * are filtered. Once every file is done, it can print how long each file took, the
+ * overall throughput and how busy each stage was.
+ */
+public class BatchProcessor {
+    private final List<Path> inputs;
+    private final FilterPipeline pipeline;
+    private final Path outputDirectory;
+    private final int threads;
+    private final int ioThreads;
+    private final int maxInFlight;
+    private final ExecutionMode filterMode;
+    private SaveOptions saveOptions = SaveOptions.Png();
+    private volatile List<PipelinedExecutor.Stage> stages = Collections.emptyList();
+
+    /**
+     * Timings and outcome for one input file
+     */
+    public static class FileResult {
+        private final Path input;
+        private Path output;
+        private int width;
+        private int height;
+        private long loadNanos;
+        private long processNanos;
+        private long saveNanos;
+        private Exception error;
+
+        FileResult(Path input) {
+            this.input = input;
+        }
+
+        public Path GetInput() { return input; }
+
+        public Path GetOutput() { return output; }
+
+        public long GetPixels() { return width * (long) height; }
+
+        public long GetLoadNanos() { return loadNanos; }
+
+        public long GetProcessNanos() { return processNanos; }
+
+        public long GetSaveNanos() { return saveNanos; }
+
+        public long GetTotalNanos() { return loadNanos + processNanos + saveNanos; }
+
+        /**
+         * @return the exception that stopped this file, or null if it succeeded
+         */
+        public Exception GetError() { return error; }
+    }
+
+    /**
+     * Creates a batch
+     * @param inputs images to process
+     * @param pipeline filters to apply to each image
+     * @param outputDirectory directory to save the results in
+     * @param threads maximum number of files filtered at the same time; as many
+     *      threads load and save files, and up to twice as many files are in flight
+     * @param filterMode execution mode for the filters within one file
+     */
+    public BatchProcessor(List<Path> inputs, FilterPipeline pipeline, Path outputDirectory,
+                          int threads, ExecutionMode filterMode) {
+        this(inputs, pipeline, outputDirectory, threads, threads, 2 * threads, filterMode);
+    }
+
+    /**
+     * Creates a batch
+     * @param inputs images to process
+     * @param pipeline filters to apply to each image
+     * @param outputDirectory directory to save the results in
+     * @param threads maximum number of files filtered at the same time
+     * @param ioThreads files loaded at once and files saved at once, on virtual threads
+     *      when the JVM has them and on that many threads per stage otherwise
+     * @param maxInFlight maximum number of files between being loaded and saved
+     * @param filterMode execution mode for the filters within one file
+     */
+    public BatchProcessor(List<Path> inputs, FilterPipeline pipeline, Path outputDirectory,
+                          int threads, int ioThreads, int maxInFlight, ExecutionMode filterMode) {
+        if (threads < 1 || ioThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Threads and files in flight must be at least 1");
+        }
+        this.inputs = new ArrayList<>(inputs);
+        this.pipeline = pipeline;
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.ioThreads = ioThreads;
+        this.maxInFlight = maxInFlight;
+        this.filterMode = filterMode;
+    }
+
+    public SaveOptions GetSaveOptions() { return saveOptions; }
+
+    /**
+     * Sets the format and encoder settings of the outputs, PNG by default
+     * @param saveOptions settings for every output
+     */
+    public void SetSaveOptions(SaveOptions saveOptions) {
+        this.saveOptions = saveOptions;
+    }
+
+    /**
+     * Finds the images to process. The input is either a directory, in which case
+     * every file ImageIO can read is used, along with .raw files (see RawImage), or
+     * a glob on file names such as "photos/*.jpg".
+     * @param input directory or glob
+     * @return matching files, sorted by name
+     * @throws IOException
+     */
+    public static List<Path> FindInputs(String input) throws IOException {
+        Path path = Paths.get(input);
+        Path directory;
+        String glob;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            glob = "*";
+        }
+        else {
+            directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        suffixes.add(RawImage.FORMAT);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+                if (Files.isRegularFile(file) && suffixes.contains(suffix)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Processes every input and waits for all of them to finish. A file that fails
+     * is recorded in its result and does not stop the others.
+     * @return one result per input, in input order
+     * @throws IOException if the output directory can't be created
+     * @throws IllegalArgumentException if two inputs would be saved to the same file
+     * @throws InterruptedException
+     */
+    public List<FileResult> Run() throws IOException, InterruptedException {
+        Map<String, Path> outputs = new HashMap<>();
+        for (Path input : inputs) {
+            Path other = outputs.putIfAbsent(OutputName(input, saveOptions), input);
+            if (other != null) {
+                throw new IllegalArgumentException("Inputs " + other + " and " + input
+                        + " would both be saved as " + OutputName(input, saveOptions));
+            }
+        }
+        Files.createDirectories(outputDirectory);
+        List<FileResult> results = new ArrayList<>();
+        List<CompletableFuture<Img>> futures = new ArrayList<>();
+        try (PipelinedExecutor executor = new PipelinedExecutor(ioThreads, threads, maxInFlight)) {
+            stages = executor.GetStages();
+            for (Path input : inputs) {
+                FileResult result = new FileResult(input);
+                results.add(result);
+                futures.add(executor.Submit(
+                        nothing -> Load(result),
+                        image -> Process(result, image),
+                        image -> Save(result, image)
+                ).exceptionally(e -> {
+                    result.error = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+                    return null;
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        }
+        return results;
+    }
+
+    /**
+     * Gets the load, process and save stages of the current or last Run, whose
+     * queue depths and latencies show where the batch spends its time
+     * @return stages in order, empty before the first Run
+     */
+    public List<PipelinedExecutor.Stage> GetStages() {
+        return stages;
+    }
+
+    /**
+     * Prints one line per stage of the last Run
+     * @param out stream to print to
+     */
+    public void PrintStageReport(PrintStream out) {
+        for (PipelinedExecutor.Stage stage : stages) {
+            out.println(stage);
+        }
+    }
+
+    /**
+     * Prints one line per file followed by totals
+     * @param results results returned by Run
+     * @param wallNanos elapsed time of the whole batch
+     * @param out stream to print to
+     */
+    public static void PrintReport(List<FileResult> results, long wallNanos, PrintStream out) {
+        long pixels = 0;
+        long load = 0, process = 0, save = 0;
+        int failed = 0;
+        for (FileResult result : results) {
+            if (result.GetError() != null) {
+                failed++;
+                out.println(String.format("%-40s FAILED: %s", result.GetInput().getFileName(), result.GetError()));
+                continue;
+            }
+            pixels += result.GetPixels();
+            load += result.GetLoadNanos();
+            process += result.GetProcessNanos();
+            save += result.GetSaveNanos();
+            out.println(String.format("%-40s %6.1f MP  load %8.1f ms  process %8.1f ms  save %8.1f ms  total %8.1f ms",
+                    result.GetInput().getFileName(), result.GetPixels() / 1e6, Millis(result.GetLoadNanos()),
+                    Millis(result.GetProcessNanos()), Millis(result.GetSaveNanos()), Millis(result.GetTotalNanos())));
+        }
+
+        double seconds = wallNanos / 1e9;
+        out.println();
+        out.println(String.format("%d files processed, %d failed, in %.2f s", results.size() - failed, failed, seconds));
+        out.println(String.format("time spent: load %.1f ms, process %.1f ms, save %.1f ms",
+                Millis(load), Millis(process), Millis(save)));
+        if (seconds > 0) {
+            out.println(String.format("throughput: %.2f files/s, %.2f MP/s",
+                    (results.size() - failed) / seconds, pixels / 1e6 / seconds));
+        }
+    }
+
+    private Img Load(FileResult result) throws IOException {
+        long start = System.nanoTime();
+        Img image = ImageManipulator.LoadImage(result.input.toString());
+        result.width = image.GetWidth();
+        result.height = image.GetHeight();
+        result.loadNanos = System.nanoTime() - start;
+        return image;
+    }
+
+    private Img Process(FileResult result, Img image) throws IOException {
+        long start = System.nanoTime();
+        Img processed = pipeline.Apply(image, filterMode);
+        if (processed != image) {
+            image.Release();
+        }
+        result.processNanos = System.nanoTime() - start;
+        return processed;
+    }
+
+    private Img Save(FileResult result, Img image) throws IOException {
+        long start = System.nanoTime();
+        result.output = outputDirectory.resolve(OutputName(result.input, saveOptions));
+        try {
+            ImageManipulator.SaveImage(image, result.output.toString(), saveOptions);
+        }
+        finally {
+            // the pixel buffer goes back to the pool for the next file
+            image.Release();
+        }
+        result.saveNanos = System.nanoTime() - start;
+        return image;
+    }
+
+    private static String OutputName(Path input, SaveOptions options) {
+        return input.getFileName() + "." + options.GetExtension();
+    }
+
+    private static double Millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
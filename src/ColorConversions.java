@@ -0,0 +1,164 @@
+/**
+ * Static utility class that converts between packed 0xRRGGBB colors and hue,
+ * saturation and lightness without creating any objects. RGB.ConvertToHSL and
+ * HSL.GetRGB are built on these functions, so both give exactly the same results.
+ *
+ * HSL values are written to and read from a caller-provided double array as three
+ * consecutive entries: hue in whole degrees (0 to 360), then saturation and
+ * lightness (0 to 1). The row functions convert many pixels into one array, which
+ * can be reused from row to row.
+ */
+public class ColorConversions {
+    /**
+     * Converts a packed color to HSL (see RGB.ConvertToHSL)
+     * @param rgb packed 0xRRGGBB color; any alpha bits are ignored
+     * @param hsl array to write hue, saturation and lightness to
+     * @param offset index in hsl to write the hue at
+     */
+    public static void RGBToHSL(int rgb, double[] hsl, int offset) {
+        hsl[offset] = Hue(rgb);
+        hsl[offset + 1] = Saturation(rgb);
+        hsl[offset + 2] = Lightness(rgb);
+    }
+
+    /**
+     * Gets the hue of a packed color, as RGBToHSL would
+     * @param rgb packed 0xRRGGBB color; any alpha bits are ignored
+     * @return hue in whole degrees, 0 to 360
+     */
+    public static int Hue(int rgb) {
+        double r = ((rgb >> 16) & 0xFF) / (double) 255;
+        double g = ((rgb >> 8) & 0xFF) / (double) 255;
+        double b = (rgb & 0xFF) / (double) 255;
+        double max = Math.max(r, Math.max(g, b));
+        double delta = max - Math.min(r, Math.min(g, b));
+        if (delta < 0.00001) {
+            return 0;
+        }
+
+        double h;
+        if (max == r) {
+            h = (g - b) / delta + (g < b ? 6 : 0);
+        }
+        else if (max == g) {
+            h = (b - r) / delta + 2;
+        }
+        else {
+            h = (r - g) / delta + 4;
+        }
+        return ClampHue((int) (h * 60));
+    }
+
+    /**
+     * Gets the saturation of a packed color, as RGBToHSL would
+     * @param rgb packed 0xRRGGBB color; any alpha bits are ignored
+     * @return saturation, 0 to 1
+     */
+    public static double Saturation(int rgb) {
+        double max = Max(rgb) / (double) 255;
+        double min = Min(rgb) / (double) 255;
+        double delta = max - min;
+        if (delta < 0.00001) {
+            return 0;
+        }
+        double l = (max + min) / 2;
+        return ClampUnit(l > 0.5 ? delta / (2 - max - min) : delta / (max + min));
+    }
+
+    /**
+     * Gets the lightness of a packed color, as RGBToHSL would
+     * @param rgb packed 0xRRGGBB color; any alpha bits are ignored
+     * @return lightness, 0 to 1
+     */
+    public static double Lightness(int rgb) {
+        return ClampUnit((Max(rgb) / (double) 255 + Min(rgb) / (double) 255) / 2);
+    }
+
+    /**
+     * Converts HSL to a packed color (see HSL.GetRGB). Values out of range are
+     * clamped the same way the HSL setters do.
+     * @param hue hue in degrees, 0 to 360
+     * @param saturation saturation, 0 to 1
+     * @param lightness lightness, 0 to 1
+     * @return packed 0xRRGGBB color, with the alpha bits 0
+     */
+    public static int HSLToRGB(int hue, double saturation, double lightness) {
+        hue = ClampHue(hue);
+        saturation = ClampUnit(saturation);
+        lightness = ClampUnit(lightness);
+
+        double chroma = (1 - Math.abs(2 * lightness - 1)) * saturation;
+        double hprime = hue / 60.0;
+        double x = chroma * (1 - Math.abs(hprime % 2 - 1));
+
+        double r, g, b;
+        switch ((int) Math.ceil(hprime)) {
+            case 1: r = chroma; g = x; b = 0; break;
+            case 2: r = x; g = chroma; b = 0; break;
+            case 3: r = 0; g = chroma; b = x; break;
+            case 4: r = 0; g = x; b = chroma; break;
+            case 5: r = x; g = 0; b = chroma; break;
+            case 6: r = chroma; g = 0; b = x; break;
+            default: r = 0; g = 0; b = 0; break;
+        }
+
+        double m = lightness - chroma / 2;
+        return (PixelOperations.Clamp((int) (255 * (r + m))) << 16)
+                | (PixelOperations.Clamp((int) (255 * (g + m))) << 8)
+                | PixelOperations.Clamp((int) (255 * (b + m)));
+    }
+
+    /**
+     * Converts HSL stored as three consecutive entries to a packed color
+     * @param hsl array holding hue, saturation and lightness
+     * @param offset index of the hue in hsl
+     * @return packed 0xRRGGBB color, with the alpha bits 0
+     */
+    public static int HSLToRGB(double[] hsl, int offset) {
+        return HSLToRGB((int) hsl[offset], hsl[offset + 1], hsl[offset + 2]);
+    }
+
+    /**
+     * Converts pixels [from, to) to HSL, three entries per pixel
+     * @param pixels packed pixels
+     * @param from first pixel to convert
+     * @param to pixel after the last one to convert
+     * @param hsl array to write to; needs 3 * (to - from) entries from offset
+     * @param offset index in hsl to write the first hue at
+     */
+    public static void RGBToHSL(int[] pixels, int from, int to, double[] hsl, int offset) {
+        for (int i = from; i < to; i++, offset += 3) {
+            RGBToHSL(pixels[i], hsl, offset);
+        }
+    }
+
+    /**
+     * Converts HSL entries back to pixels [from, to), keeping each pixel's alpha
+     * @param hsl array holding hue, saturation and lightness, three entries per pixel
+     * @param offset index in hsl of the first hue
+     * @param pixels packed pixels to write to
+     * @param from first pixel to write
+     * @param to pixel after the last one to write
+     */
+    public static void HSLToRGB(double[] hsl, int offset, int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++, offset += 3) {
+            pixels[i] = (pixels[i] & 0xFF000000) | HSLToRGB(hsl, offset);
+        }
+    }
+
+    private static int Max(int rgb) {
+        return Math.max((rgb >> 16) & 0xFF, Math.max((rgb >> 8) & 0xFF, rgb & 0xFF));
+    }
+
+    private static int Min(int rgb) {
+        return Math.min((rgb >> 16) & 0xFF, Math.min((rgb >> 8) & 0xFF, rgb & 0xFF));
+    }
+
+    private static int ClampHue(int hue) {
+        return hue < 0 ? 0 : (hue > 360 ? 360 : hue);
+    }
+
+    private static double ClampUnit(double value) {
+        return value >= 0 && value <= 1 ? value : (value < 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,141 @@
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memoizes a PixelOperation over the 24-bit RGB color space, so that applying it
+ * to a pixel whose color has been seen before is a single array lookup.
+ *
+ * The table is split into 256 pages, one per red value, of 65536 entries each.
+ * Pages are only allocated once a color in them is seen, and entries are only
+ * computed the first time their color is seen, so a table costs as much as the
+ * colors actually used rather than 16.7 million evaluations up front.
+ *
+ * A table may be shared between threads. Each entry is a single int write, and
+ * two threads racing on the same entry both store the same value.
+ *
+ * Tables for the HSL setters are kept in a small cache, so processing several
+ * images with the same parameter reuses the colors already computed. Then()
+ * combines two tables into one, for filters that run back to back.
+ */
+public class ColorLookupTable implements PixelOperation {
+    private static final int PAGES = 256;
+    private static final int PAGE_SIZE = 1 << 16;
+
+    /**
+     * Set on every filled entry so that a computed black pixel can be told apart
+     * from an entry that was never filled
+     */
+    private static final int FILLED = 0xFF000000;
+
+    private static final int CACHED_TABLES = 4;
+
+    private static final Map<String, SoftReference<ColorLookupTable>> cache =
+            new LinkedHashMap<String, SoftReference<ColorLookupTable>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SoftReference<ColorLookupTable>> eldest) {
+                    return size() > CACHED_TABLES;
+                }
+            };
+
+    private final PixelOperation operation;
+    /** Key of the table in the cache, or null if it isn't cached */
+    private final String key;
+    private final AtomicReferenceArray<int[]> pages = new AtomicReferenceArray<>(PAGES);
+
+    /**
+     * Creates an empty table for the given operation. The operation must not depend
+     * on the alpha channel, since all pixels with the same color share an entry.
+     * @param operation operation to memoize
+     */
+    public ColorLookupTable(PixelOperation operation) {
+        this(operation, null);
+    }
+
+    private ColorLookupTable(PixelOperation operation, String key) {
+        this.operation = operation;
+        this.key = key;
+    }
+
+    /**
+     * Gets the shared table for PixelOperations.SetHue with the given hue
+     * @param hue hue to set
+     * @return lookup table for the hue
+     */
+    public static ColorLookupTable ForHue(int hue) {
+        return Cached("hue:" + hue, pixel -> PixelOperations.SetHue(pixel, hue));
+    }
+
+    /**
+     * Gets the shared table for PixelOperations.SetSaturation with the given saturation
+     * @param saturation saturation to set
+     * @return lookup table for the saturation
+     */
+    public static ColorLookupTable ForSaturation(double saturation) {
+        return Cached("saturation:" + saturation, pixel -> PixelOperations.SetSaturation(pixel, saturation));
+    }
+
+    /**
+     * Gets the shared table for PixelOperations.SetLightness with the given lightness
+     * @param lightness lightness to set
+     * @return lookup table for the lightness
+     */
+    public static ColorLookupTable ForLightness(double lightness) {
+        return Cached("lightness:" + lightness, pixel -> PixelOperations.SetLightness(pixel, lightness));
+    }
+
+    /**
+     * Gets a table for this table's operation followed by another one's, so that a
+     * pixel takes one lookup instead of two. It gives exactly the pixels the two
+     * tables give one after the other.
+     * @param next table to apply after this one
+     * @return lookup table for both; a shared one if both tables are
+     */
+    public ColorLookupTable Then(ColorLookupTable next) {
+        PixelOperation first = operation;
+        PixelOperation second = next.operation;
+        PixelOperation both = rgb -> second.Apply(first.Apply(rgb) & 0x00FFFFFF);
+        if (key == null || next.key == null) {
+            return new ColorLookupTable(both);
+        }
+        return Cached(key + ", " + next.key, both);
+    }
+
+    /**
+     * Looks up the transformed color, computing it first if it hasn't been seen yet
+     * @param pixel packed pixel
+     * @return transformed pixel, with the alpha of the input pixel
+     */
+    @Override
+    public int Apply(int pixel) {
+        int rgb = pixel & 0x00FFFFFF;
+        int[] page = pages.get(rgb >>> 16);
+        if (page == null) {
+            page = CreatePage(rgb >>> 16);
+        }
+        int entry = page[rgb & 0xFFFF];
+        if (entry == 0) {
+            entry = operation.Apply(rgb) | FILLED;
+            page[rgb & 0xFFFF] = entry;
+        }
+        return (pixel & 0xFF000000) | (entry & 0x00FFFFFF);
+    }
+
+    private int[] CreatePage(int index) {
+        pages.compareAndSet(index, null, new int[PAGE_SIZE]);
+        return pages.get(index);
+    }
+
+    private static ColorLookupTable Cached(String key, PixelOperation operation) {
+        synchronized (cache) {
+            SoftReference<ColorLookupTable> reference = cache.get(key);
+            ColorLookupTable table = reference == null ? null : reference.get();
+            if (table == null) {
+                table = new ColorLookupTable(operation, key);
+                cache.put(key, new SoftReference<>(table));
+            }
+            return table;
+        }
+    }
+}
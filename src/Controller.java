@@ -9,10 +9,24 @@ import java.util.Scanner;
  * Controller parses the necessary information and delegates to ImageManipulator
  * to actually do image manipulation. Once ImageManipulator returns the transformed
  * image, Controller displays the image to the user.
+ *
+ * In preview mode (the 'preview' command), filters are applied to a display-sized
+ * copy so they show up at once, and to the full resolution image in the background;
+ * 'save' waits for the full resolution result. See PreviewSession.
+ *
+ * 'undo' and 'redo' step through the filters applied since the image was loaded
+ * or preview mode was switched. Only the changes are kept, see EditHistory; the
+ * memory they may use is set in megabytes with -Dimagemanip.history.mb.
  */
 public class Controller {
     Img image;
     JFrame frame;
+    /** Whether newly loaded images are edited through a PreviewSession */
+    boolean previewMode;
+    /** Set while the image shown is a preview; image is then session.GetPreview() */
+    PreviewSession session;
+    /** Filters applied to image, for undo and redo */
+    EditHistory history;
 
     /**
      * Create a UI window to display image
@@ -20,6 +34,8 @@ public class Controller {
     public Controller() {
         frame = new JFrame();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        long budget = Long.getLong("imagemanip.history.mb", EditHistory.DEFAULT_MEMORY_BUDGET >> 20);
+        history = new EditHistory(budget << 20);
     }
 
     /**
@@ -41,6 +57,10 @@ public class Controller {
                 System.out.println("\t'hue'");
                 System.out.println("\t'saturation'");
                 System.out.println("\t'lightness'");
+                System.out.println("\t'undo'");
+                System.out.println("\t'redo'");
+                System.out.println("\t'preview'");
+                System.out.println("\t'metrics'");
                 System.out.println("\t'quit'");
 
                 System.out.println("Enter a command:");
@@ -51,60 +71,107 @@ public class Controller {
                         System.out.println("Enter image path:");
                         String path = GetPathFromUser(scanner);
                         image = ImageManipulator.LoadImage(path);
+                        history.Clear();
+                        if (previewMode) {
+                            StartPreview();
+                        }
                         DrawImage();
                         break;
                     }
                     case "save": {
                         System.out.println("Enter image save path:");
                         String path = GetPathFromUser(scanner);
-                        ImageManipulator.SaveImage(image, path);
+                        if (session != null) {
+                            System.out.println("Rendering " + session.GetHistory() + " at full resolution...");
+                            session.Save(path, SaveOptions.Png());
+                        }
+                        else {
+                            ImageManipulator.SaveImage(image, path);
+                        }
                         break;
                     }
                     case "grayscale": {
-                        image = ImageManipulator.ConvertToGrayScale(image);
-                        DrawImage();
+                        Apply(new FilterPipeline().GrayScale());
                         break;
                     }
                     case "invert": {
-                        image = ImageManipulator.InvertImage(image);
+                        Apply(new FilterPipeline().Invert());
                         break;
                     }
                     case "sepia": {
-                        image = ImageManipulator.ConvertToSepia(image);
-                        DrawImage();
+                        Apply(new FilterPipeline().Sepia());
                         break;
                     }
                     case "bw": {
-                        image = ImageManipulator.ConvertToBW(image);
-                        DrawImage();
+                        Apply(new FilterPipeline().BW());
                         break;
                     }
                     case "rotate": {
-                        image = ImageManipulator.RotateImage(image);
-                        DrawImage();
+                        Apply(new FilterPipeline().Rotate());
                         break;
                     }
                     case "instagram": {
-                        image = ImageManipulator.InstagramFilter(image);
-                        DrawImage();
+                        Apply(new FilterPipeline().Instagram());
                         break;
                     }
                     case "hue": {
                         System.out.println("Enter hue to set (0, 359):");
                         int hue = scanner.nextInt();
-                        image = ImageManipulator.SetHue(image, hue);
+                        Apply(new FilterPipeline().Hue(hue));
                         break;
                     }
                     case "saturation": {
                         System.out.println("Enter saturation to set (0, 1):");
                         double saturation = scanner.nextDouble();
-                        image = ImageManipulator.SetSaturation(image, saturation);
+                        Apply(new FilterPipeline().Saturation(saturation));
                         break;
                     }
                     case "lightness": {
                         System.out.println("Enter lightness to set (0, 1):");
                         double lightness = scanner.nextDouble();
-                        image = ImageManipulator.SetLightness(image, lightness);
+                        Apply(new FilterPipeline().Lightness(lightness));
+                        break;
+                    }
+                    case "undo": {
+                        Undo();
+                        break;
+                    }
+                    case "redo": {
+                        Redo();
+                        break;
+                    }
+                    case "preview": {
+                        previewMode = !previewMode;
+                        // the history holds changes to the image being replaced
+                        history.Clear();
+                        if (previewMode) {
+                            System.out.println("Preview mode on: filters are shown on a "
+                                    + Img.DEFAULT_DISPLAY_HEIGHT + " pixel high copy and applied at full resolution in the background.");
+                            if (image != null) {
+                                StartPreview();
+                                DrawImage();
+                            }
+                        }
+                        else {
+                            System.out.println("Preview mode off.");
+                            if (session != null) {
+                                // carry on editing the full resolution result
+                                image = session.Render();
+                                session.close();
+                                session = null;
+                                DrawImage();
+                            }
+                        }
+                        break;
+                    }
+                    case "metrics": {
+                        if (!Metrics.IsEnabled()) {
+                            Metrics.SetEnabled(true);
+                            System.out.println("Metrics enabled. Enter 'metrics' again for a report.");
+                        }
+                        else {
+                            Metrics.PrintReport(System.out);
+                        }
                         break;
                     }
                     case "quit": {
@@ -123,11 +190,76 @@ public class Controller {
         }
     }
 
+    /**
+     * Applies filters to the image and draws it. In preview mode they are applied to
+     * the preview and recorded for the full resolution image.
+     * @param steps filters to apply
+     * @throws IOException
+     */
+    public void Apply(FilterPipeline steps) throws IOException {
+        Img before = image.Snapshot();
+        image = session != null ? session.Apply(steps) : steps.Apply(image);
+        history.Record(before, image, steps);
+        before.Release();
+        DrawImage();
+    }
+
+    /**
+     * Reverts the last filters applied and draws the image
+     * @throws IOException if the history can't be read back from its temporary file
+     */
+    public void Undo() throws IOException {
+        if (!history.CanUndo()) {
+            System.out.println("Nothing to undo.");
+            return;
+        }
+        FilterPipeline steps = history.PeekUndo();
+        image = history.Undo(image);
+        if (session != null) {
+            FilterPipeline recorded = session.GetHistory();
+            int kept = recorded.GetSteps().size() - steps.GetSteps().size();
+            session.Restore(recorded.Slice(0, kept), image);
+        }
+        System.out.println("Undid " + steps + " (" + history + ")");
+        DrawImage();
+    }
+
+    /**
+     * Applies the last undone filters again and draws the image
+     * @throws IOException if the history can't be read back from its temporary file
+     */
+    public void Redo() throws IOException {
+        if (!history.CanRedo()) {
+            System.out.println("Nothing to redo.");
+            return;
+        }
+        FilterPipeline steps = history.PeekRedo();
+        image = history.Redo(image);
+        if (session != null) {
+            session.Restore(session.GetHistory().Then(steps), image);
+        }
+        System.out.println("Redid " + steps + " (" + history + ")");
+        DrawImage();
+    }
+
+    /**
+     * Starts editing the current image through a preview
+     */
+    private void StartPreview() {
+        if (session != null) {
+            session.close();
+        }
+        session = new PreviewSession(image, Img.DEFAULT_DISPLAY_HEIGHT);
+        image = session.GetPreview();
+    }
+
     /**
      * Removes the old image and draws a new image in the UI Window
      */
     public void DrawImage() {
         frame.getContentPane().removeAll();
+        // filters write straight to the pixel array, so the scaled copy must be redone
+        image.MarkModified();
         image.setPreferredSize(new Dimension(image.GetScaledWidth(), image.GetScaledHeight()));
         frame.getContentPane().add(image);
         frame.pack();
@@ -0,0 +1,465 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Undo and redo for a series of edits to an image, without keeping a copy of the
+ * image for every step.
+ *
+ * Each edit is stored as the filters that made it plus a delta between the image
+ * before and after. When the size stays the same, the delta holds only the
+ * Img.TILE x Img.TILE tiles that changed, as the XOR of their old and new pixels.
+ * XOR makes the delta work both ways: applying it to the image after the edit gives
+ * the image before, and the other way round. An edit that changes the size, like a
+ * rotation, stores both whole images instead.
+ *
+ * The delta of the latest edit is kept as it is, so undoing it is one XOR per
+ * changed pixel. Once another edit is recorded it is compressed with deflate, and
+ * undoing it costs one decompression on top; either way nothing is re-applied
+ * from the original. Deltas are kept in memory up to a budget. Beyond it, the
+ * oldest ones are written to a temporary file and read back when they are undone.
+ * The file is deleted by close().
+ */
+public class EditHistory implements AutoCloseable {
+    /** Memory budget of a history created without one: 64 MB */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static final int TILE = Img.TILE;
+
+    private final long memoryBudget;
+    private final Deque<Delta> undo = new ArrayDeque<>();
+    private final Deque<Delta> redo = new ArrayDeque<>();
+    private long memoryBytes;
+    private long spilledBytes;
+    private Path spillPath;
+    private RandomAccessFile spill;
+
+    /**
+     * One edit: the filters that made it and the delta between before and after
+     */
+    private static class Delta {
+        private final FilterPipeline steps;
+        private final int beforeWidth;
+        private final int beforeHeight;
+        private final boolean beforeAlpha;
+        private final int afterWidth;
+        private final int afterHeight;
+        private final boolean afterAlpha;
+        /**
+         * Indexes of the changed tiles, row by row, whose XORs follow each other in
+         * the delta; null if the delta holds the whole image before, then after
+         */
+        private final int[] tiles;
+        /** Number of pixels in the delta */
+        private final int count;
+        /** Uncompressed delta, or null once compressed */
+        private int[] raw;
+        /** Compressed delta, or null while raw or once spilled */
+        private byte[] data;
+        private long spillOffset = -1;
+        /** Bytes the delta takes in its current form */
+        private int length;
+
+        Delta(FilterPipeline steps, Img before, Img after, int[] tiles, int[] raw) {
+            this.steps = steps;
+            beforeWidth = before.GetWidth();
+            beforeHeight = before.GetHeight();
+            beforeAlpha = before.HasAlpha();
+            afterWidth = after.GetWidth();
+            afterHeight = after.GetHeight();
+            afterAlpha = after.HasAlpha();
+            this.tiles = tiles;
+            this.raw = raw;
+            count = raw.length;
+            length = 4 * raw.length;
+        }
+    }
+
+    /**
+     * Creates a history with the default memory budget
+     */
+    public EditHistory() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a history
+     * @param memoryBudget bytes of deltas to keep in memory before older ones are
+     *      moved to a temporary file
+     */
+    public EditHistory(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Records an edit, dropping everything that could be redone
+     * @param before image before the edit; pass a Snapshot() taken before editing
+     * @param after image after the edit
+     * @param steps filters that made the edit
+     * @throws IOException if older deltas can't be moved to the temporary file
+     */
+    public synchronized void Record(Img before, Img after, FilterPipeline steps) throws IOException {
+        Metrics.Timer timer = Metrics.Start("history-record");
+        ClearRedo();
+        if (!undo.isEmpty()) {
+            Compress(undo.peek());
+        }
+        Delta delta;
+        if (before.GetWidth() == after.GetWidth() && before.GetHeight() == after.GetHeight()
+                && before.HasAlpha() == after.HasAlpha()) {
+            delta = TileDelta(before, after, steps);
+        }
+        else {
+            int beforeCount = before.GetWidth() * before.GetHeight();
+            int afterCount = after.GetWidth() * after.GetHeight();
+            int[] both = Arrays.copyOf(before.GetReadOnlyPixels(), beforeCount + afterCount);
+            System.arraycopy(after.GetReadOnlyPixels(), 0, both, beforeCount, afterCount);
+            delta = new Delta(steps, before, after, null, both);
+        }
+        undo.push(delta);
+        memoryBytes += delta.length;
+        if (memoryBytes > memoryBudget) {
+            Compress(delta);
+        }
+        Spill();
+        Metrics.Stop(timer, after.GetWidth() * (long) after.GetHeight());
+    }
+
+    public synchronized boolean CanUndo() {
+        return !undo.isEmpty();
+    }
+
+    public synchronized boolean CanRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * @return filters of the edit Undo would revert, or null if there is none
+     */
+    public synchronized FilterPipeline PeekUndo() {
+        return undo.isEmpty() ? null : undo.peek().steps;
+    }
+
+    /**
+     * @return filters of the edit Redo would repeat, or null if there is none
+     */
+    public synchronized FilterPipeline PeekRedo() {
+        return redo.isEmpty() ? null : redo.peek().steps;
+    }
+
+    /**
+     * Reverts the last edit
+     * @param current the image as the last edit left it
+     * @return the image before the edit: current itself, changed in place, unless the
+     *      edit changed the size
+     * @throws IOException if the delta can't be read back from the temporary file
+     */
+    public synchronized Img Undo(Img current) throws IOException {
+        if (undo.isEmpty()) {
+            throw new IllegalStateException("Nothing to undo");
+        }
+        Img before = Apply(undo.peek(), current, true);
+        redo.push(undo.pop());
+        return before;
+    }
+
+    /**
+     * Repeats the last undone edit
+     * @param current the image as Undo left it
+     * @return the image after the edit: current itself, changed in place, unless the
+     *      edit changed the size
+     * @throws IOException if the delta can't be read back from the temporary file
+     */
+    public synchronized Img Redo(Img current) throws IOException {
+        if (redo.isEmpty()) {
+            throw new IllegalStateException("Nothing to redo");
+        }
+        Img after = Apply(redo.peek(), current, false);
+        undo.push(redo.pop());
+        return after;
+    }
+
+    /**
+     * Forgets every edit
+     * @throws IOException if the temporary file can't be emptied
+     */
+    public synchronized void Clear() throws IOException {
+        undo.clear();
+        redo.clear();
+        memoryBytes = 0;
+        spilledBytes = 0;
+        if (spill != null) {
+            spill.setLength(0);
+        }
+    }
+
+    /** @return number of edits that can be undone */
+    public synchronized int GetUndoCount() { return undo.size(); }
+
+    /** @return number of edits that can be redone */
+    public synchronized int GetRedoCount() { return redo.size(); }
+
+    /** @return bytes of deltas held in memory */
+    public synchronized long GetMemoryBytes() { return memoryBytes; }
+
+    /** @return bytes of deltas moved to the temporary file */
+    public synchronized long GetSpilledBytes() { return spilledBytes; }
+
+    public long GetMemoryBudget() { return memoryBudget; }
+
+    /**
+     * Forgets every edit and deletes the temporary file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        Clear();
+        if (spill != null) {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+            spill = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("history: %d undo, %d redo, %.1f MB in memory, %.1f MB on disk",
+                undo.size(), redo.size(), memoryBytes / 1e6, spilledBytes / 1e6);
+    }
+
+    /**
+     * Collects the XOR of every tile that differs between before and after. If the
+     * two still share their pixels, as when after was edited through a Snapshot()
+     * taken as before, only the tiles either one has copied can differ, so only
+     * those are compared, and neither image gets its pixels copied.
+     */
+    private static Delta TileDelta(Img before, Img after, FilterPipeline steps) {
+        int width = after.GetWidth();
+        int height = after.GetHeight();
+        int tilesAcross = (width + TILE - 1) / TILE;
+        int tileCount = tilesAcross * ((height + TILE - 1) / TILE);
+        int[] candidates = after.SharesPixelsWith(before) ? CopiedTiles(before, after, tileCount) : null;
+        int candidateCount = candidates != null ? candidates.length : tileCount;
+        int[] tiles = new int[candidateCount];
+        int[] xors = PixelBufferPool.Acquire((int) Math.min(width * (long) height, candidateCount * (long) TILE * TILE), false);
+        int[] old = new int[TILE * TILE];
+        int[] current = new int[TILE * TILE];
+        int changed = 0;
+        int length = 0;
+        for (int c = 0; c < candidateCount; c++) {
+            int t = candidates != null ? candidates[c] : c;
+            int x = (t % tilesAcross) * TILE;
+            int y = (t / tilesAcross) * TILE;
+            int tileWidth = Math.min(TILE, width - x);
+            int tileHeight = Math.min(TILE, height - y);
+            // GetRegion reads through the tiles, so a shared image isn't copied
+            before.GetRegion(x, y, tileWidth, tileHeight, old);
+            after.GetRegion(x, y, tileWidth, tileHeight, current);
+            int differs = 0;
+            for (int i = 0, j = length; i < tileWidth * tileHeight; i++, j++) {
+                xors[j] = old[i] ^ current[i];
+                differs |= xors[j];
+            }
+            if (differs != 0) {
+                tiles[changed++] = t;
+                length += tileWidth * tileHeight;
+            }
+        }
+        Delta delta = new Delta(steps, before, after, Arrays.copyOf(tiles, changed), Arrays.copyOf(xors, length));
+        PixelBufferPool.Release(xors);
+        return delta;
+    }
+
+    /**
+     * Lists the tiles either of two images sharing their pixels has copied, in order
+     */
+    private static int[] CopiedTiles(Img before, Img after, int tileCount) {
+        boolean[] copied = new boolean[tileCount];
+        for (int t : before.GetCopiedTiles()) {
+            copied[t] = true;
+        }
+        for (int t : after.GetCopiedTiles()) {
+            copied[t] = true;
+        }
+        int[] tiles = new int[tileCount];
+        int count = 0;
+        for (int t = 0; t < tileCount; t++) {
+            if (copied[t]) {
+                tiles[count++] = t;
+            }
+        }
+        return Arrays.copyOf(tiles, count);
+    }
+
+    /**
+     * Applies a delta to the image on one side of it
+     * @param toBefore true to go from after to before, false for the other way
+     */
+    private Img Apply(Delta delta, Img current, boolean toBefore) throws IOException {
+        Metrics.Timer timer = Metrics.Start(toBefore ? "history-undo" : "history-redo");
+        Img result;
+        if (delta.tiles == null) {
+            result = toBefore
+                    ? new Img(delta.beforeWidth, delta.beforeHeight, delta.beforeAlpha)
+                    : new Img(delta.afterWidth, delta.afterHeight, delta.afterAlpha);
+            int offset = toBefore ? 0 : delta.beforeWidth * delta.beforeHeight;
+            Read(delta, offset, result.GetPixels(), result.GetWidth() * result.GetHeight());
+        }
+        else {
+            int[] xors = delta.raw;
+            if (xors == null) {
+                xors = PixelBufferPool.Acquire(delta.count, false);
+                Read(delta, 0, xors, delta.count);
+            }
+            XorTiles(xors, current, delta.tiles);
+            if (xors != delta.raw) {
+                PixelBufferPool.Release(xors);
+            }
+            result = current;
+        }
+        result.MarkModified();
+        Metrics.Stop(timer, result.GetWidth() * (long) result.GetHeight());
+        return result;
+    }
+
+    private static void XorTiles(int[] xors, Img image, int[] tiles) {
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int tilesAcross = (width + TILE - 1) / TILE;
+        int[] pixels = image.GetPixels();
+        int j = 0;
+        for (int t : tiles) {
+            int x = (t % tilesAcross) * TILE;
+            int y = (t / tilesAcross) * TILE;
+            int tileWidth = Math.min(TILE, width - x);
+            int tileHeight = Math.min(TILE, height - y);
+            for (int row = y; row < y + tileHeight; row++) {
+                for (int i = row * width + x, end = i + tileWidth; i < end; i++, j++) {
+                    pixels[i] ^= xors[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads count pixels of a delta, starting at the given pixel
+     */
+    private void Read(Delta delta, int offset, int[] destination, int count) throws IOException {
+        if (delta.raw != null) {
+            System.arraycopy(delta.raw, offset, destination, 0, count);
+            return;
+        }
+        byte[] data = Load(delta);
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data), inflater, 1 << 16)) {
+            in.skipNBytes(4L * offset);
+            ByteBuffer buffer = ByteBuffer.allocate(4 * TILE * TILE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int start = 0; start < count; start += TILE * TILE) {
+                int chunk = Math.min(TILE * TILE, count - start);
+                if (in.readNBytes(buffer.array(), 0, 4 * chunk) != 4 * chunk) {
+                    throw new IOException("Edit history is truncated");
+                }
+                buffer.clear();
+                buffer.asIntBuffer().get(destination, start, chunk);
+            }
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Replaces an uncompressed delta by its deflated form
+     */
+    private void Compress(Delta delta) throws IOException {
+        if (delta.raw == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // deltas are mostly zeros or smooth; the fastest level already shrinks them well
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(bytes, deflater, 1 << 16)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 * TILE * TILE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int start = 0; start < delta.count; start += TILE * TILE) {
+                int chunk = Math.min(TILE * TILE, delta.count - start);
+                buffer.clear();
+                buffer.asIntBuffer().put(delta.raw, start, chunk);
+                out.write(buffer.array(), 0, 4 * chunk);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        delta.data = bytes.toByteArray();
+        delta.raw = null;
+        memoryBytes += delta.data.length - delta.length;
+        delta.length = delta.data.length;
+    }
+
+    /**
+     * Gets the compressed delta, from memory or from the temporary file
+     */
+    private byte[] Load(Delta delta) throws IOException {
+        if (delta.data != null) {
+            return delta.data;
+        }
+        byte[] data = new byte[delta.length];
+        spill.seek(delta.spillOffset);
+        spill.readFully(data);
+        return data;
+    }
+
+    /**
+     * Moves the oldest deltas to the temporary file until the rest fit the budget
+     */
+    private void Spill() throws IOException {
+        Iterator<Delta> oldest = undo.descendingIterator();
+        while (memoryBytes > memoryBudget && oldest.hasNext()) {
+            Delta delta = oldest.next();
+            if (delta.raw == null && delta.data == null) {
+                continue;
+            }
+            Compress(delta);
+            if (spill == null) {
+                spillPath = Files.createTempFile("imagemanip-history", ".bin");
+                spillPath.toFile().deleteOnExit();
+                spill = new RandomAccessFile(spillPath.toFile(), "rw");
+            }
+            delta.spillOffset = spill.length();
+            spill.seek(delta.spillOffset);
+            spill.write(delta.data);
+            delta.data = null;
+            memoryBytes -= delta.length;
+            spilledBytes += delta.length;
+        }
+    }
+
+    private void ClearRedo() {
+        for (Delta delta : redo) {
+            if (delta.raw != null || delta.data != null) {
+                memoryBytes -= delta.length;
+            }
+            else {
+                spilledBytes -= delta.length;
+            }
+        }
+        redo.clear();
+    }
+}
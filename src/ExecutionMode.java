@@ -0,0 +1,160 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decides how ImageManipulator walks over an image: either sequentially on the
+ * calling thread, or split into horizontal bands of rows that run in parallel on
+ * a ForkJoinPool. Every filter produces the same result in either mode, because
+ * each pixel is still computed from its own value only.
+ *
+ * A mode can be passed to a single ImageManipulator call, or installed globally
+ * with SetDefault so that the overloads without a mode pick it up.
+ */
+public class ExecutionMode {
+    /**
+     * Number of pixels a band aims for when no band height was given. Small enough
+     * to give every worker plenty of bands, big enough that the split overhead is noise.
+     */
+    private static final int TARGET_BAND_PIXELS = 1 << 16;
+
+    private static volatile ExecutionMode defaultMode = Sequential();
+
+    private final ForkJoinPool pool;
+    private final int bandHeight;
+
+    /**
+     * A piece of work over the rows [startRow, endRow) of an image
+     */
+    public interface RowBandTask {
+        void Run(int startRow, int endRow);
+    }
+
+    private ExecutionMode(ForkJoinPool pool, int bandHeight) {
+        if (bandHeight < 0) {
+            throw new IllegalArgumentException("Band height must not be negative: " + bandHeight);
+        }
+        this.pool = pool;
+        this.bandHeight = bandHeight;
+    }
+
+    // Factories
+
+    /**
+     * Runs every filter on the calling thread
+     * @return sequential execution mode
+     */
+    public static ExecutionMode Sequential() {
+        return new ExecutionMode(null, 0);
+    }
+
+    /**
+     * Runs filters on the common ForkJoinPool with automatically sized bands
+     * @return parallel execution mode
+     */
+    public static ExecutionMode Parallel() {
+        return new ExecutionMode(ForkJoinPool.commonPool(), 0);
+    }
+
+    /**
+     * Runs filters on a new ForkJoinPool with the given number of worker threads.
+     * Keep the returned mode around and reuse it; each call creates a new pool.
+     * @param parallelism number of worker threads
+     * @return parallel execution mode
+     */
+    public static ExecutionMode Parallel(int parallelism) {
+        return new ExecutionMode(new ForkJoinPool(parallelism), 0);
+    }
+
+    /**
+     * Runs filters on the given pool, splitting images into bands of the given height
+     * @param pool pool to run the bands on
+     * @param bandHeight rows per band, or 0 to size bands automatically
+     * @return parallel execution mode
+     */
+    public static ExecutionMode Parallel(ForkJoinPool pool, int bandHeight) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool must not be null");
+        }
+        return new ExecutionMode(pool, bandHeight);
+    }
+
+    /**
+     * Gets the mode used by the ImageManipulator overloads that don't take one
+     * @return the global execution mode
+     */
+    public static ExecutionMode GetDefault() {
+        return defaultMode;
+    }
+
+    /**
+     * Sets the mode used by the ImageManipulator overloads that don't take one
+     * @param mode the new global execution mode
+     */
+    public static void SetDefault(ExecutionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode must not be null");
+        }
+        defaultMode = mode;
+    }
+
+    // Getters
+
+    public boolean IsParallel() {
+        return pool != null;
+    }
+
+    public ForkJoinPool GetPool() {
+        return pool;
+    }
+
+    public int GetBandHeight() {
+        return bandHeight;
+    }
+
+    /**
+     * Runs the task over all rows of an image. In sequential mode the task gets all
+     * rows at once; in parallel mode it gets called once per band, possibly from
+     * several threads at a time, and this method returns when every band is done.
+     * @param width width of the image, used to size bands automatically
+     * @param height number of rows in the image
+     * @param task work to run on each band
+     */
+    public void ForEachBand(int width, int height, RowBandTask task) {
+        int rows = bandHeight > 0 ? bandHeight : Math.max(1, TARGET_BAND_PIXELS / Math.max(1, width));
+        if (pool == null || height <= rows) {
+            task.Run(0, height);
+            return;
+        }
+        pool.invoke(new BandAction(task, 0, height, rows));
+    }
+
+    /**
+     * Splits a range of rows in half until it is no taller than one band
+     */
+    private static class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowBandTask task;
+        private final int startRow;
+        private final int endRow;
+        private final int bandHeight;
+
+        BandAction(RowBandTask task, int startRow, int endRow, int bandHeight) {
+            this.task = task;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandHeight) {
+                task.Run(startRow, endRow);
+                return;
+            }
+            int middle = (startRow + endRow) >>> 1;
+            invokeAll(new BandAction(task, startRow, middle, bandHeight),
+                    new BandAction(task, middle, endRow, bandHeight));
+        }
+    }
+}
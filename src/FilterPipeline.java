@@ -0,0 +1,560 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An ordered chain of ImageManipulator filters that can be applied to an image in
+ * as few passes as possible. For example:
+ *
+ *     new FilterPipeline().Sepia().Saturation(.2).Lightness(.5).Apply(image);
+ *
+ * Consecutive point-wise filters (grayscale, invert, sepia, hue, saturation,
+ * lightness, or any PixelOperation) are fused: the image is walked once, and each
+ * chunk of pixels goes through every filter while it is still in cache. Filters
+ * that need more than one pixel at a time (black/white, rotate, instagram) act as
+ * barriers: everything before them is finished first, then they run on their own.
+ *
+ * Applying a pipeline gives the same result as calling the filters one by one.
+ *
+ * Optimize() rewrites a pipeline into one that does less work for the same result:
+ * pairs of inversions cancel out, a repeated grayscale collapses into one,
+ * consecutive hue, saturation and lightness setters share one lookup table,
+ * rotations are merged, and point-wise steps move past rotations so that they
+ * fuse into one pass. Explain() shows what Optimize() made of it.
+ *
+ * Within(region) limits the steps to a Region of the image, so that they only visit
+ * the pixels in it. Steps limited to the same region still fuse; rotations can't be
+ * limited, since they move pixels across the whole image.
+ */
+public class FilterPipeline {
+    /**
+     * Pixels per chunk in a fused pass. 1024 packed pixels are 4 KB, which stays
+     * in the L1 cache while every filter in the chain runs over it.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * A filter that needs to see the whole image, and so can't be fused
+     */
+    public interface Barrier {
+        /**
+         * @param image image to transform
+         * @param region pixels to change, or null for the whole image
+         * @param mode sequential or parallel execution
+         * @return the transformed image
+         */
+        Img Apply(Img image, Region region, ExecutionMode mode) throws IOException;
+    }
+
+    /**
+     * One filter in the pipeline, with the parameter it was added with
+     */
+    public static class Step {
+        private final String name;
+        private final Double parameter;
+        private final PixelOperation operation;
+        private final Barrier barrier;
+        private final Region region;
+
+        private Step(String name, Double parameter, PixelOperation operation, Barrier barrier, Region region) {
+            this.name = name;
+            this.parameter = parameter;
+            this.operation = operation;
+            this.barrier = barrier;
+            this.region = region;
+        }
+
+        public String GetName() {
+            return name;
+        }
+
+        /**
+         * @return the filter's parameter, or null if it doesn't take one
+         */
+        public Double GetParameter() {
+            return parameter;
+        }
+
+        /**
+         * @return true if the step can be fused with its neighbours
+         */
+        public boolean IsPointWise() {
+            return operation != null;
+        }
+
+        /**
+         * @return the per-pixel operation, or null for barriers
+         */
+        public PixelOperation GetOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the whole-image filter, or null for point-wise steps
+         */
+        public Barrier GetBarrier() {
+            return barrier;
+        }
+
+        /**
+         * @return the pixels the step changes, or null for the whole image
+         */
+        public Region GetRegion() {
+            return region;
+        }
+
+        @Override
+        public String toString() {
+            return region == null ? Label() : Label() + " in " + region;
+        }
+
+        /**
+         * @return name and parameter of the step, without its region
+         */
+        private String Label() {
+            if (parameter == null) {
+                return name;
+            }
+            double value = parameter;
+            return name + "(" + (value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value)) + ")";
+        }
+    }
+
+    /**
+     * Builds a pipeline from a comma separated list of steps, using the same names as
+     * the Controller commands. Steps that take a parameter are written name=value.
+     * For example: "sepia,saturation=0.2,lightness=0.5"
+     * @param spec list of steps
+     * @return the pipeline
+     */
+    public static FilterPipeline Parse(String spec) {
+        FilterPipeline pipeline = new FilterPipeline();
+        for (String part : spec.split(",")) {
+            String step = part.trim();
+            if (step.isEmpty()) {
+                continue;
+            }
+            String name = step;
+            String value = null;
+            int equals = step.indexOf('=');
+            if (equals >= 0) {
+                name = step.substring(0, equals).trim();
+                value = step.substring(equals + 1).trim();
+            }
+            switch (name) {
+                case "grayscale": pipeline.GrayScale(); break;
+                case "invert": pipeline.Invert(); break;
+                case "sepia": pipeline.Sepia(); break;
+                case "sepia-fast": pipeline.Sepia(true); break;
+                case "bw": pipeline.BW(); break;
+                case "rotate": pipeline.Rotate(); break;
+                case "instagram": pipeline.Instagram(); break;
+                case "hue": pipeline.Hue(Integer.parseInt(RequireValue(name, value))); break;
+                case "saturation": pipeline.Saturation(Double.parseDouble(RequireValue(name, value))); break;
+                case "lightness": pipeline.Lightness(Double.parseDouble(RequireValue(name, value))); break;
+                default: throw new IllegalArgumentException("Unknown step: " + name);
+            }
+        }
+        return pipeline;
+    }
+
+    // Point-wise steps
+
+    public FilterPipeline GrayScale() {
+        return AddPointWise("grayscale", null, PixelKernels.GRAY_SCALE);
+    }
+
+    public FilterPipeline Invert() {
+        return AddPointWise("invert", null, PixelKernels.INVERT);
+    }
+
+    public FilterPipeline Sepia() {
+        return Sepia(false);
+    }
+
+    /**
+     * Adds a sepia step, using fixed-point math if fast is set (see
+     * ImageManipulator.ConvertToSepia(Img, boolean))
+     * @param fast whether to use fixed-point math
+     * @return this pipeline
+     */
+    public FilterPipeline Sepia(boolean fast) {
+        return fast ? AddPointWise("sepia-fast", null, PixelKernels.SEPIA_FAST)
+                : AddPointWise("sepia", null, PixelKernels.SEPIA);
+    }
+
+    public FilterPipeline Hue(int hue) {
+        return AddPointWise("hue", (double) hue, ColorLookupTable.ForHue(hue));
+    }
+
+    public FilterPipeline Saturation(double saturation) {
+        return AddPointWise("saturation", saturation, ColorLookupTable.ForSaturation(saturation));
+    }
+
+    public FilterPipeline Lightness(double lightness) {
+        return AddPointWise("lightness", lightness, ColorLookupTable.ForLightness(lightness));
+    }
+
+    /**
+     * Adds a custom point-wise step
+     * @param name name of the step, used by toString
+     * @param operation per-pixel operation
+     * @return this pipeline
+     */
+    public FilterPipeline Then(String name, PixelOperation operation) {
+        return AddPointWise(name, null, operation);
+    }
+
+    // Barriers
+
+    public FilterPipeline BW() {
+        return AddBarrier("bw", null, ImageManipulator::ConvertToBW);
+    }
+
+    public FilterPipeline Rotate() {
+        return Rotate(90);
+    }
+
+    /**
+     * Adds a clockwise rotation. Rotations by 180 degrees are done in place.
+     * @param degrees any multiple of 90, including negative ones
+     * @return this pipeline
+     */
+    public FilterPipeline Rotate(int degrees) {
+        RotateBarrier rotate = new RotateBarrier(degrees);
+        return AddBarrier("rotate", rotate.quarterTurns == 1 ? null : (double) (rotate.quarterTurns * 90), rotate);
+    }
+
+    public FilterPipeline Instagram() {
+        return AddBarrier("instagram", null, ImageManipulator::InstagramFilter);
+    }
+
+    /**
+     * Adds a custom whole-image step
+     * @param name name of the step, used by toString
+     * @param barrier filter to run on the whole image
+     * @return this pipeline
+     */
+    public FilterPipeline ThenBarrier(String name, Barrier barrier) {
+        return AddBarrier(name, null, barrier);
+    }
+
+    /**
+     * Adds every step of another pipeline, in order
+     * @param other pipeline whose steps to add; it isn't changed
+     * @return this pipeline
+     */
+    public FilterPipeline Then(FilterPipeline other) {
+        steps.addAll(other.steps);
+        return this;
+    }
+
+    /**
+     * Limits every step added so far to a region. Steps that already have one keep it.
+     * @param region pixels the steps may change, or null to leave them as they are
+     * @return this pipeline
+     * @throws IllegalArgumentException if the pipeline rotates
+     */
+    public FilterPipeline Within(Region region) {
+        if (region == null) {
+            return this;
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.barrier instanceof RotateBarrier) {
+                throw new IllegalArgumentException("Rotate can't be limited to a region");
+            }
+            if (step.region == null) {
+                steps.set(i, new Step(step.name, step.parameter, step.operation, step.barrier, region));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Copies the pipeline with every region scaled, to run it on a resized copy of
+     * the image
+     * @param scale ratio of the size of the copy to the size of the image
+     * @return this pipeline if no step has a region, or a scaled copy
+     */
+    public FilterPipeline Scale(double scale) {
+        FilterPipeline scaled = new FilterPipeline();
+        for (Step step : steps) {
+            scaled.steps.add(step.region == null ? step
+                    : new Step(step.name, step.parameter, step.operation, step.barrier, step.region.Scale(scale)));
+        }
+        return scaled.steps.equals(steps) ? this : scaled;
+    }
+
+    /**
+     * Builds a pipeline that gives the same image as this one with fewer steps and
+     * passes. Within each stretch between barriers other than rotate:
+     *   - point-wise steps after a rotation move before it, since rotating only moves
+     *     pixels, so they fuse with the point-wise steps that precede it; steps
+     *     limited to a region stay where they are, as the region would move,
+     *   - all rotations become one, or none if they add up to a full turn,
+     *   - two inversions in a row cancel out, and a repeated grayscale collapses
+     *     into one,
+     *   - consecutive lookup table steps, such as setters of hue, saturation or
+     *     lightness, on the same region become one step over a table for all of
+     *     them, named like "hue(200) + lightness(0.5)".
+     * Only rewrites that give exactly the same pixels are made. A setter of hue,
+     * saturation or lightness is not dropped when a later one sets the same
+     * component, since it can change the others: a lightness of 0 or 1 turns any
+     * color into black or white, losing its hue and saturation. Composing the
+     * tables keeps that, and still costs one lookup per pixel.
+     * @return optimized pipeline; this one isn't changed
+     */
+    public FilterPipeline Optimize() {
+        FilterPipeline optimized = new FilterPipeline();
+        List<Step> run = new ArrayList<>();
+        int quarterTurns = 0;
+        for (Step step : steps) {
+            if (step.IsPointWise() && step.region != null && quarterTurns % 4 != 0) {
+                // a region is in the coordinates of the image as it is after the rotations
+                Flush(optimized, run, quarterTurns);
+                quarterTurns = 0;
+            }
+            if (step.IsPointWise()) {
+                AddSimplified(run, step);
+            }
+            else if (step.GetBarrier() instanceof RotateBarrier) {
+                quarterTurns += ((RotateBarrier) step.GetBarrier()).quarterTurns;
+            }
+            else {
+                Flush(optimized, run, quarterTurns);
+                quarterTurns = 0;
+                optimized.steps.add(step);
+            }
+        }
+        Flush(optimized, run, quarterTurns);
+        return optimized;
+    }
+
+    /**
+     * Describes the optimized plan for this pipeline, one pass per line:
+     *
+     *     sepia -> hue(200) -> invert -> invert -> rotate -> hue(100)
+     *     optimized to 2 passes:
+     *       1. fused: sepia, hue(200) + hue(100)
+     *       2. rotate
+     *
+     * @return multi-line description of the plan
+     */
+    public String Explain() {
+        List<String> passes = new ArrayList<>();
+        StringBuilder fused = new StringBuilder();
+        Region fusedRegion = null;
+        for (Step step : Optimize().steps) {
+            if (step.IsPointWise() && (fused.length() == 0 || Objects.equals(step.region, fusedRegion))) {
+                fused.append(fused.length() > 0 ? ", " : "fused: ").append(step);
+                fusedRegion = step.region;
+                continue;
+            }
+            if (step.IsPointWise()) {
+                passes.add(fused.toString());
+                fused.setLength(0);
+                fused.append("fused: ").append(step);
+                fusedRegion = step.region;
+                continue;
+            }
+            if (fused.length() > 0) {
+                passes.add(fused.toString());
+                fused.setLength(0);
+            }
+            passes.add(step.toString());
+        }
+        if (fused.length() > 0) {
+            passes.add(fused.toString());
+        }
+
+        StringBuilder plan = new StringBuilder(steps.isEmpty() ? "(no steps)" : toString());
+        plan.append(System.lineSeparator()).append("optimized to ").append(passes.size())
+                .append(passes.size() == 1 ? " pass:" : " passes:");
+        for (int i = 0; i < passes.size(); i++) {
+            plan.append(System.lineSeparator()).append("  ").append(i + 1).append(". ").append(passes.get(i));
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Makes a new pipeline out of some of the steps of this one
+     * @param from index of the first step to take
+     * @param to index after the last step to take
+     * @return new pipeline holding steps [from, to)
+     */
+    public FilterPipeline Slice(int from, int to) {
+        FilterPipeline slice = new FilterPipeline();
+        slice.steps.addAll(steps.subList(from, to));
+        return slice;
+    }
+
+    /**
+     * Gets the steps in the order they will be applied
+     * @return read-only list of steps
+     */
+    public List<Step> GetSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Applies the pipeline using the global execution mode
+     * @param image image to transform
+     * @return the transformed image
+     * @throws IOException
+     */
+    public Img Apply(Img image) throws IOException {
+        return Apply(image, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Applies the pipeline. Fused passes are split into bands by the given mode.
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return the transformed image (a different object than image if a step, like
+     *      rotate, had to create a new one). Images created along the way, other than
+     *      the one returned, are released; image itself never is.
+     * @throws IOException
+     */
+    public Img Apply(Img image, ExecutionMode mode) throws IOException {
+        Metrics.Timer timer = Metrics.Start("pipeline");
+        Img input = image;
+        List<PixelOperation> fused = new ArrayList<>();
+        Region fusedRegion = null;
+        for (Step step : steps) {
+            if (step.IsPointWise() && (fused.isEmpty() || Objects.equals(step.region, fusedRegion))) {
+                fused.add(step.GetOperation());
+                fusedRegion = step.region;
+                continue;
+            }
+            ApplyFused(image, fused, fusedRegion, mode);
+            fused.clear();
+            if (step.IsPointWise()) {
+                fused.add(step.GetOperation());
+                fusedRegion = step.region;
+                continue;
+            }
+            Img result = step.GetBarrier().Apply(image, step.region, mode);
+            if (result != image && image != input) {
+                image.Release();
+            }
+            image = result;
+        }
+        ApplyFused(image, fused, fusedRegion, mode);
+        Metrics.Stop(timer, image.GetWidth() * (long) image.GetHeight());
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Step step : steps) {
+            if (builder.length() > 0) {
+                builder.append(" -> ");
+            }
+            builder.append(step);
+        }
+        return builder.toString();
+    }
+
+    private FilterPipeline AddPointWise(String name, Double parameter, PixelOperation operation) {
+        steps.add(new Step(name, parameter, operation, null, null));
+        return this;
+    }
+
+    private FilterPipeline AddBarrier(String name, Double parameter, Barrier barrier) {
+        steps.add(new Step(name, parameter, null, barrier, null));
+        return this;
+    }
+
+    /**
+     * Adds a point-wise step to a run of point-wise steps, dropping whatever it
+     * cancels and composing it with a lookup table before it
+     */
+    private static void AddSimplified(List<Step> run, Step step) {
+        Step last = run.isEmpty() ? null : run.get(run.size() - 1);
+        PixelOperation operation = step.GetOperation();
+        if (last != null && last.GetOperation() instanceof ColorLookupTable && operation instanceof ColorLookupTable
+                && Objects.equals(last.region, step.region)) {
+            ColorLookupTable composed = ((ColorLookupTable) last.GetOperation()).Then((ColorLookupTable) operation);
+            run.set(run.size() - 1, new Step(last.Label() + " + " + step.Label(), null, composed, null, step.region));
+            return;
+        }
+        if (last != null && last.GetOperation() == operation && Objects.equals(last.region, step.region)
+                && (operation == PixelKernels.INVERT || operation == PixelKernels.GRAY_SCALE)) {
+            if (operation == PixelKernels.INVERT) {
+                run.remove(run.size() - 1);
+            }
+            return;
+        }
+        run.add(step);
+    }
+
+    /**
+     * Ends a stretch between barriers: its point-wise steps, then its rotations as one
+     */
+    private static void Flush(FilterPipeline optimized, List<Step> run, int quarterTurns) {
+        optimized.steps.addAll(run);
+        run.clear();
+        if (quarterTurns % 4 != 0) {
+            optimized.Rotate(quarterTurns * 90);
+        }
+    }
+
+    /**
+     * Rotation by a multiple of 90 degrees, which Optimize can merge with others
+     */
+    private static class RotateBarrier implements Barrier {
+        private final int quarterTurns;
+
+        RotateBarrier(int degrees) {
+            if (degrees % 90 != 0) {
+                throw new IllegalArgumentException("Degrees must be a multiple of 90: " + degrees);
+            }
+            quarterTurns = ((degrees / 90) % 4 + 4) % 4;
+        }
+
+        @Override
+        public Img Apply(Img image, Region region, ExecutionMode mode) {
+            return ImageManipulator.RotateImage(image, quarterTurns * 90, quarterTurns == 2, mode);
+        }
+    }
+
+    private static String RequireValue(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Step needs a value, like " + name + "=0.5");
+        }
+        return value;
+    }
+
+    /**
+     * Runs a chain of point-wise operations in one pass over a region of the image
+     */
+    private static void ApplyFused(Img image, List<PixelOperation> chain, Region region, ExecutionMode mode) {
+        if (chain.isEmpty()) {
+            return;
+        }
+        Metrics.Timer timer = Metrics.Start("fused");
+        PixelOperation[] operations = chain.toArray(new PixelOperation[0]);
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> {
+                for (int chunk = from; chunk < to; chunk += CHUNK_SIZE) {
+                    int chunkEnd = Math.min(chunk + CHUNK_SIZE, to);
+                    for (PixelOperation operation : operations) {
+                        operation.ApplyToRange(pixels, chunk, chunkEnd);
+                    }
+                }
+            });
+        }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
+    }
+}
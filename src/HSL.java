@@ -114,58 +114,7 @@ public class HSL {
      * @return an RGB representation of the pixel
      */
     public RGB GetRGB() {
-        double chroma = (1 - Math.abs(2 * lightness - 1)) * saturation;
-        double hprime = hue / 60.0;
-
-        double x = chroma * (1 - Math.abs( hprime % 2  - 1));
-
-        double r, g, b;
-        switch ((int) Math.ceil(hprime)) {
-            case 1: {
-                r = chroma;
-                g = x;
-                b = 0;
-                break;
-            }
-            case 2: {
-                r = x;
-                g = chroma;
-                b = 0;
-                break;
-            }
-            case 3: {
-                r = 0;
-                g = chroma;
-                b = x;
-                break;
-            }
-            case 4: {
-                r = 0;
-                g = x;
-                b = chroma;
-                break;
-            }
-            case 5: {
-                r = x;
-                g = 0;
-                b = chroma;
-                break;
-            }
-            case 6: {
-                r = chroma;
-                g = 0;
-                b = x;
-                break;
-            }
-            default: {
-                r = 0;
-                g = 0;
-                b = 0;
-                break;
-            }
-        }
-
-        double m = lightness - chroma / 2;
-        return new RGB((int) (255 * (r + m)), (int) (255 * (g + m)), (int) (255 * (b + m)));
+        int rgb = ColorConversions.HSLToRGB(hue, saturation, lightness);
+        return new RGB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
     }
 }
@@ -1,12 +1,16 @@
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.Arrays;
 
 /**
  * Static utility class that is responsible for transforming the images.
  * Each function (or at least most functions) take in an Image and return
  * a transformed image.
+ *
+ * On a lazy image (see Img.SetLazy) the filters only record themselves with
+ * Img.Defer and return the image itself; they run once its pixels are needed.
+ *
+ * Every filter but rotate has an overload that takes a Region, and then only
+ * visits and changes the pixels in it.
  */
 public class ImageManipulator {
     /**
@@ -30,6 +34,18 @@ public class ImageManipulator {
         image.Save("png", path);
     }
 
+    /**
+     * Saves the image to the given file location in the given format. Use
+     * SaveOptions.FastPng() for intermediate files.
+     * @param image image to save
+     * @param path location in file system to save the image
+     * @param options format and encoder settings
+     * @throws IOException
+     */
+    public static void SaveImage(Img image, String path, SaveOptions options) throws IOException {
+        image.Save(path, options);
+    }
+
     /**
      * Converts the given image to grayscale (black, white, and gray). This is done
      * by finding the average of the RGB channel values of each pixel and setting
@@ -38,16 +54,41 @@ public class ImageManipulator {
      * @return the image transformed to grayscale
      */
     public static Img ConvertToGrayScale(Img image) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-                RGB value = image.GetRGB(i, j);
-                int avg = ((value.GetRed() + value.GetBlue() + value.GetGreen()) / 3);
-                value.SetRed(avg);
-                value.SetBlue(avg);
-                value.SetGreen(avg);
-                image.SetRGB(i, j, value);
-            }
+        return ConvertToGrayScale(image, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as ConvertToGrayScale(Img), but runs in the given execution mode
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img ConvertToGrayScale(Img image, ExecutionMode mode) {
+        return ConvertToGrayScale(image, null, mode);
+    }
+
+    /**
+     * Same as ConvertToGrayScale(Img), but only changes the pixels in a region and
+     * runs in the given execution mode
+     * @param image image to transform
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img ConvertToGrayScale(Img image, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().GrayScale().Within(region), mode);
         }
+        Metrics.Timer timer = Metrics.Start("grayscale");
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> PixelKernels.GrayScale(pixels, from, to));
+        }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
@@ -58,15 +99,41 @@ public class ImageManipulator {
      * @return image transformed to inverted image
      */
     public static Img InvertImage(Img image) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-                RGB value = image.GetRGB(i, j);
-                value.SetRed(255 - value.GetRed());
-                value.SetBlue(255 - value.GetBlue());
-                value.SetGreen(255 - value.GetGreen());
-                image.SetRGB(i, j, value);
-            }
+        return InvertImage(image, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as InvertImage(Img), but runs in the given execution mode
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img InvertImage(Img image, ExecutionMode mode) {
+        return InvertImage(image, null, mode);
+    }
+
+    /**
+     * Same as InvertImage(Img), but only changes the pixels in a region and runs in
+     * the given execution mode
+     * @param image image to transform
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img InvertImage(Img image, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Invert().Within(region), mode);
+        }
+        Metrics.Timer timer = Metrics.Start("invert");
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> PixelKernels.Invert(pixels, from, to));
+        }
+        finally {
+            window.close();
         }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
@@ -80,18 +147,72 @@ public class ImageManipulator {
      * @return image transformed to sepia
      */
     public static Img ConvertToSepia(Img image) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-                RGB value = image.GetRGB(i, j);
-                double red = (int)(0.393 * value.GetRed()) + (0.769 * value.GetGreen()) + (0.189 * value.GetBlue());
-                double green = (int)(0.349 * value.GetRed()) + (0.686 * value.GetGreen()) + (0.168 * value.GetBlue());
-                double blue = (int)(0.272 * value.GetRed()) + (0.534 * value.GetGreen()) + (0.131 * value.GetBlue());
-                value.SetRed((int)red);
-                value.SetBlue((int)blue);
-                value.SetGreen((int)green);
-                image.SetRGB(i, j, value);
-            }
+        return ConvertToSepia(image, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as ConvertToSepia(Img), but runs in the given execution mode
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img ConvertToSepia(Img image, ExecutionMode mode) {
+        return ConvertToSepia(image, false, mode);
+    }
+
+    /**
+     * Same as ConvertToSepia(Img), but can use integer fixed-point math instead of
+     * doubles. The fast mode is several times faster; each channel may come out 1
+     * off from the exact result (see PixelOperations.SepiaFast).
+     * @param image image to transform
+     * @param fast whether to use fixed-point math
+     * @return image transformed to sepia
+     */
+    public static Img ConvertToSepia(Img image, boolean fast) {
+        return ConvertToSepia(image, fast, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as ConvertToSepia(Img, boolean), but runs in the given execution mode
+     * @param image image to transform
+     * @param fast whether to use fixed-point math
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img ConvertToSepia(Img image, boolean fast, ExecutionMode mode) {
+        return ConvertToSepia(image, fast, null, mode);
+    }
+
+    /**
+     * Same as ConvertToSepia(Img, boolean), but only changes the pixels in a region
+     * and runs in the given execution mode
+     * @param image image to transform
+     * @param fast whether to use fixed-point math
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img ConvertToSepia(Img image, boolean fast, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Sepia(fast).Within(region), mode);
+        }
+        Metrics.Timer timer = Metrics.Start(fast ? "sepia-fast" : "sepia");
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> {
+                if (fast) {
+                    PixelKernels.SepiaFast(pixels, from, to);
+                }
+                else {
+                    PixelKernels.Sepia(pixels, from, to);
+                }
+            });
+        }
+        finally {
+            window.close();
         }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
@@ -105,50 +226,248 @@ public class ImageManipulator {
      * @return black/white stylized form of image
      */
     public static Img ConvertToBW(Img image) {
-        RGB black = new RGB(0, 0, 0);
-        RGB white = new RGB(255, 255, 255);
-        ArrayList <Double> list = new ArrayList<>();
-
-        for(int i = 0; i < image.GetWidth(); i++) {
-            for (int j = 0; j < image.GetHeight(); j++) {
-                RGB value = image.GetRGB(i, j);
-                double cal = (Math.pow(0.299 * value.GetRed(), 2) + Math.pow(0.587 * value.GetGreen(), 2) + Math.pow(0.114 * value.GetBlue(), 2));
-                double luminance = Math.sqrt(cal);
-                list.add(luminance);
-            }
-        }
-        //sort luminance in loop
-        Collections.sort(list);
-
-        int medianIndex = (list.size() /2);
-        double median = list.get(medianIndex);
+        return ConvertToBW(image, ExecutionMode.GetDefault());
+    }
 
-        //compare to luminance in another loop (calculate luminance again)
-        for(int i = 0; i < image.GetWidth(); i++) {
-            for (int j = 0; j < image.GetHeight(); j++) {
-                RGB value = image.GetRGB(i, j);
-                double cal = (Math.pow((0.299 * value.GetRed()), 2) + Math.pow((.587 * value.GetGreen()), 2) + Math.pow((.114 * value.GetBlue()), 2));
-                double luminance = Math.sqrt(cal);
+    /**
+     * Same as ConvertToBW(Img), but runs the thresholding pass in the given execution mode
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return black/white stylized form of image
+     */
+    public static Img ConvertToBW(Img image, ExecutionMode mode) {
+        return ConvertToBW(image, null, mode);
+    }
 
-                if (luminance >= median) {
-                    image.SetRGB(i, j, white);
+    /**
+     * Same as ConvertToBW(Img), but only changes the pixels in a region, thresholding
+     * them at the median luminance of the region, and runs in the given execution mode
+     * @param image image to transform
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return black/white stylized form of image
+     */
+    public static Img ConvertToBW(Img image, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().BW().Within(region), mode);
+        }
+        if (Region.Clip(region, image.GetWidth(), image.GetHeight()).IsEmpty()) {
+            return image;
+        }
+        Metrics.Timer timer = Metrics.Start("bw");
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            double median = MedianLuminance(pixels, window.GetWidth(), window.GetArea(), mode);
 
-                } else {
-                    image.SetRGB(i, j, black);
+            window.ForEachSpan(mode, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    pixels[i] = PixelOperations.BlackOrWhite(pixels[i], median);
                 }
-            }
+            });
+        }
+        finally {
+            window.close();
         }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
+    /**
+     * Finds the median luminance of the pixels in a region (the value at index size / 2
+     * once sorted). Rather than sorting every luminance, this builds a LuminanceHistogram,
+     * then only selects among the pixels in the range that holds the median.
+     */
+    private static double MedianLuminance(int[] pixels, int width, Region area, ExecutionMode mode) {
+        LuminanceHistogram histogram = new LuminanceHistogram();
+        area.ForEachBand(mode, (startRow, endRow) -> {
+            LuminanceHistogram band = new LuminanceHistogram();
+            area.Spans(width, startRow, endRow, (from, to) -> band.Add(pixels, from, to));
+            synchronized (histogram) {
+                histogram.Merge(band);
+            }
+        });
+
+        long rank = histogram.GetTotal() / 2;
+        int bin = histogram.BinOfRank(rank);
+        double[] candidates = new double[(int) histogram.GetCount(bin)];
+        int[] filled = new int[1];
+        area.ForEachBand(mode, (startRow, endRow) -> {
+            double[][] band = { new double[16] };
+            int[] size = new int[1];
+            area.Spans(width, startRow, endRow, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    double luminance = PixelOperations.Luminance(pixels[i]);
+                    if (LuminanceHistogram.BinOf(luminance) == bin) {
+                        if (size[0] == band[0].length) {
+                            band[0] = Arrays.copyOf(band[0], size[0] * 2);
+                        }
+                        band[0][size[0]++] = luminance;
+                    }
+                }
+            });
+            synchronized (candidates) {
+                System.arraycopy(band[0], 0, candidates, filled[0], size[0]);
+                filled[0] += size[0];
+            }
+        });
+
+        return LuminanceHistogram.Select(candidates, candidates.length, (int) (rank - histogram.CountBelow(bin)));
+    }
+
     /**
      * Rotates the image 90 degrees clockwise.
      * @param image image to transform
      * @return image rotated 90 degrees clockwise
      */
     public  static Img RotateImage(Img image) {
-        // Implement this method and remove the line below
-        throw new UnsupportedOperationException();
+        return RotateImage(image, 90);
+    }
+
+    /**
+     * Rotates the image clockwise by the given multiple of 90 degrees into a new image.
+     * @param image image to rotate
+     * @param degrees 90, 180 or 270 (any multiple of 90, including negative ones)
+     * @return new image holding the rotated image
+     */
+    public static Img RotateImage(Img image, int degrees) {
+        return RotateImage(image, degrees, false);
+    }
+
+    /**
+     * Rotates the image clockwise by the given multiple of 90 degrees. In place rotation
+     * needs no second pixel array, but is only possible for 180 degrees or square images.
+     * @param image image to rotate
+     * @param degrees 90, 180 or 270 (any multiple of 90, including negative ones)
+     * @param inPlace rotate the pixels of image itself instead of creating a new image
+     * @return the rotated image (the same object as image when rotating in place)
+     */
+    public static Img RotateImage(Img image, int degrees, boolean inPlace) {
+        return RotateImage(image, degrees, inPlace, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as RotateImage(Img, int, boolean), but a rotation into a new image runs in
+     * the given execution mode
+     * @param image image to rotate
+     * @param degrees 90, 180 or 270 (any multiple of 90, including negative ones)
+     * @param inPlace rotate the pixels of image itself instead of creating a new image
+     * @param mode sequential or parallel execution
+     * @return the rotated image (the same object as image when rotating in place)
+     */
+    public static Img RotateImage(Img image, int degrees, boolean inPlace, ExecutionMode mode) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Degrees must be a multiple of 90: " + degrees);
+        }
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Rotate(degrees), mode);
+        }
+        int quarterTurns = ((degrees / 90) % 4 + 4) % 4;
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        if (inPlace && quarterTurns % 2 == 1 && width != height) {
+            throw new IllegalArgumentException("Only square images can be rotated 90 or 270 degrees in place");
+        }
+        Metrics.Timer timer = Metrics.Start("rotate");
+        // rotating into a new image only reads the source, so a snapshot needn't copy
+        int[] pixels = inPlace ? image.GetPixels() : image.GetReadOnlyPixels();
+
+        if (inPlace) {
+            if (quarterTurns == 2) {
+                Rotation.Rotate180InPlace(pixels, width * height);
+            }
+            else if (quarterTurns != 0) {
+                if (quarterTurns == 1) {
+                    Rotation.Rotate90InPlace(pixels, width);
+                }
+                else {
+                    Rotation.Rotate270InPlace(pixels, width);
+                }
+            }
+            Metrics.Stop(timer, Pixels(image));
+            return image;
+        }
+
+        boolean swapsSides = quarterTurns % 2 == 1;
+        Img rotated = new Img(swapsSides ? height : width, swapsSides ? width : height, image.HasAlpha());
+        int[] destination = rotated.GetPixels();
+        mode.ForEachBand(width, height, (startRow, endRow) -> {
+            switch (quarterTurns) {
+                case 1: Rotation.Rotate90(pixels, width, height, destination, startRow, endRow); break;
+                case 2: Rotation.Rotate180(pixels, width, height, destination, startRow, endRow); break;
+                case 3: Rotation.Rotate270(pixels, width, height, destination, startRow, endRow); break;
+                default: System.arraycopy(pixels, startRow * width, destination, startRow * width, (endRow - startRow) * width); break;
+            }
+        });
+        Metrics.Stop(timer, Pixels(image));
+        return rotated;
+    }
+
+    /**
+     * Resizes the image into a new image with the Lanczos kernel
+     * @param image image to resize
+     * @param width width of the new image
+     * @param height height of the new image
+     * @return new image holding the resized image
+     */
+    public static Img ResizeImage(Img image, int width, int height) {
+        return ResizeImage(image, width, height, Resampler.Kernel.LANCZOS, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Resizes the image into a new image. Shrinking by half or more averages 2 x 2
+     * blocks first, so large reductions cost little more than reading the source once.
+     * @param image image to resize
+     * @param width width of the new image
+     * @param height height of the new image
+     * @param kernel how to weigh source pixels; BOX is fastest, LANCZOS sharpest
+     * @param mode sequential or parallel execution
+     * @return new image holding the resized image
+     */
+    public static Img ResizeImage(Img image, int width, int height, Resampler.Kernel kernel, ExecutionMode mode) {
+        Metrics.Timer timer = Metrics.Start("resize");
+        Img resized = new Img(width, height, image.HasAlpha());
+        Resampler.Resize(image.GetReadOnlyPixels(), image.GetWidth(), image.GetHeight(), resized.GetPixels(),
+                width, height, image.HasAlpha(), kernel, mode);
+        Metrics.Stop(timer, Pixels(image));
+        return resized;
+    }
+
+    /**
+     * Creates thumbnails that fit in squares of the given sizes, keeping the aspect
+     * ratio. Each thumbnail is made from the smallest image already made that is at
+     * least twice its size, or from the image itself, so that a series of sizes reads
+     * the full image only once or twice.
+     * @param image image to make thumbnails of
+     * @param sizes longest side of each thumbnail, in any order
+     * @param kernel how to weigh source pixels
+     * @param mode sequential or parallel execution
+     * @return one thumbnail per size, in the order of sizes
+     */
+    public static Img[] CreateThumbnails(Img image, int[] sizes, Resampler.Kernel kernel, ExecutionMode mode) {
+        Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(sizes[b], sizes[a]));
+
+        Img[] thumbnails = new Img[sizes.length];
+        for (int made = 0; made < order.length; made++) {
+            int i = order[made];
+            double scale = Math.min(1, sizes[i] / (double) Math.max(image.GetWidth(), image.GetHeight()));
+            int width = Math.max(1, (int) Math.round(image.GetWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.GetHeight() * scale));
+            Img source = image;
+            for (int previous = made - 1; previous >= 0; previous--) {
+                Img candidate = thumbnails[order[previous]];
+                if (candidate.GetWidth() >= 2 * width && candidate.GetHeight() >= 2 * height) {
+                    source = candidate;
+                    break;
+                }
+            }
+            thumbnails[i] = ResizeImage(source, width, height, kernel, mode);
+        }
+        return thumbnails;
     }
 
     /**
@@ -163,14 +482,87 @@ public class ImageManipulator {
      *      image and 35% of the halo image. For example:
      *          r = .65 * r_image + .35 * r_halo
      * 3) We add decorative grain by combining our image with a decorative grain image
-     *      (resources/decorative_grain.png). We will do this at a .95 / .5 ratio.
+     *      (resources/decorative_grain.png). We will do this at a .95 / .05 ratio.
+     * The halo and grain images are stretched to the size of our image by picking the
+     *      nearest pixel.
      * @param image image to transform
      * @return image with a filter
      * @throws IOException
      */
     public static Img InstagramFilter(Img image) throws IOException {
-        // Implement this method and remove the line below
-        throw new UnsupportedOperationException();
+        return InstagramFilter(image, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as InstagramFilter(Img), but runs in the given execution mode. The halo and
+     * grain images come from OverlayAssets, already resampled to the size of the image,
+     * and all three steps are done in a single pass over the pixels.
+     * @param image image to transform
+     * @param mode sequential or parallel execution
+     * @return image with a filter
+     * @throws IOException if the overlay images can't be loaded
+     */
+    public static Img InstagramFilter(Img image, ExecutionMode mode) throws IOException {
+        return InstagramFilter(image, null, mode);
+    }
+
+    /**
+     * Same as InstagramFilter(Img), but only changes the pixels in a region and runs
+     * in the given execution mode. The halo still covers the whole image, so a region
+     * gets the part of the vignette that falls on it.
+     * @param image image to transform
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return image with a filter
+     * @throws IOException if the overlay images can't be loaded
+     */
+    public static Img InstagramFilter(Img image, Region region, ExecutionMode mode) throws IOException {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Instagram().Within(region), mode);
+        }
+        Metrics.Timer timer = Metrics.Start("instagram");
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        OverlayAssets.Overlay halo = OverlayAssets.Get(OverlayAssets.HALO, width, height);
+        OverlayAssets.Overlay grain = OverlayAssets.Get(OverlayAssets.GRAIN, width, height);
+        byte[] haloRed = halo.GetRed(), haloGreen = halo.GetGreen(), haloBlue = halo.GetBlue();
+        byte[] grainRed = grain.GetRed(), grainGreen = grain.GetGreen(), grainBlue = grain.GetBlue();
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            int rowLength = window.GetWidth();
+            window.ForEachSpan(mode, (from, to) -> {
+                // the overlays are laid out like the whole image, and a span can hold
+                // several rows of the window
+                for (int start = from; start < to; ) {
+                    int end = Math.min(to, (start / rowLength + 1) * rowLength);
+                    int shift = window.ImageIndex(start) - start;
+                    for (int i = start; i < end; i++) {
+                        int pixel = pixels[i];
+                        int o = i + shift;
+                        // 1) warm
+                        int r = Math.min((int) (((pixel >> 16) & 0xFF) * 1.2), 255);
+                        int g = (pixel >> 8) & 0xFF;
+                        int b = (int) ((pixel & 0xFF) / 1.5);
+                        // 2) vignette
+                        r = (int) (.65 * r + .35 * (haloRed[o] & 0xFF));
+                        g = (int) (.65 * g + .35 * (haloGreen[o] & 0xFF));
+                        b = (int) (.65 * b + .35 * (haloBlue[o] & 0xFF));
+                        // 3) grain
+                        r = (int) (.95 * r + .05 * (grainRed[o] & 0xFF));
+                        g = (int) (.95 * g + .05 * (grainGreen[o] & 0xFF));
+                        b = (int) (.95 * b + .05 * (grainBlue[o] & 0xFF));
+                        pixels[i] = (pixel & 0xFF000000) | (r << 16) | (g << 8) | b;
+                    }
+                    start = end;
+                }
+            });
+        }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
+        return image;
     }
 
     /**
@@ -182,14 +574,48 @@ public class ImageManipulator {
      * @return image with added hue
      */
     public static Img SetHue(Img image, int hue) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-               HSL hPixel = image.GetRGB(i, j).ConvertToHSL();
-               hPixel.SetHue(hue);
-               RGB rPixel = hPixel.GetRGB();
-               image.SetRGB(i, j, rPixel);
-            }
+        return SetHue(image, hue, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as SetHue(Img, int), but runs in the given execution mode
+     * @param image image to transform
+     * @param hue hue to set
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetHue(Img image, int hue, ExecutionMode mode) {
+        return SetHue(image, hue, null, mode);
+    }
+
+    /**
+     * Same as SetHue(Img, int), but only changes the pixels in a region and runs
+     * in the given execution mode
+     * @param image image to transform
+     * @param hue hue to set
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetHue(Img image, int hue, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Hue(hue).Within(region), mode);
+        }
+        Metrics.Timer timer = Metrics.Start("hue");
+        ColorLookupTable table = ColorLookupTable.ForHue(hue);
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    pixels[i] = table.Apply(pixels[i]);
+                }
+            });
         }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
@@ -202,14 +628,48 @@ public class ImageManipulator {
      * @return image with added hue
      */
     public static Img SetSaturation(Img image, double saturation) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-                HSL hPixel = image.GetRGB(i, j).ConvertToHSL();
-                hPixel.SetSaturation(saturation);
-                RGB rPixel = hPixel.GetRGB();
-                image.SetRGB(i, j, rPixel);
-            }
+        return SetSaturation(image, saturation, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as SetSaturation(Img, double), but runs in the given execution mode
+     * @param image image to transform
+     * @param saturation saturation to set
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetSaturation(Img image, double saturation, ExecutionMode mode) {
+        return SetSaturation(image, saturation, null, mode);
+    }
+
+    /**
+     * Same as SetSaturation(Img, double), but only changes the pixels in a region and runs
+     * in the given execution mode
+     * @param image image to transform
+     * @param saturation saturation to set
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetSaturation(Img image, double saturation, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Saturation(saturation).Within(region), mode);
+        }
+        Metrics.Timer timer = Metrics.Start("saturation");
+        ColorLookupTable table = ColorLookupTable.ForSaturation(saturation);
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    pixels[i] = table.Apply(pixels[i]);
+                }
+            });
         }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
 
@@ -222,14 +682,52 @@ public class ImageManipulator {
      * @return image with added hue
      */
     public static Img SetLightness(Img image, double lightness) {
-        for(int i = 0; i < image.GetWidth(); i++){
-            for(int j = 0; j < image.GetHeight(); j++){
-                HSL hPixel = image.GetRGB(i, j).ConvertToHSL();
-                hPixel.SetLightness(lightness);
-                RGB rPixel = hPixel.GetRGB();
-                image.SetRGB(i, j, rPixel);
-            }
+        return SetLightness(image, lightness, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Same as SetLightness(Img, double), but runs in the given execution mode
+     * @param image image to transform
+     * @param lightness lightness to set
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetLightness(Img image, double lightness, ExecutionMode mode) {
+        return SetLightness(image, lightness, null, mode);
+    }
+
+    /**
+     * Same as SetLightness(Img, double), but only changes the pixels in a region and runs
+     * in the given execution mode
+     * @param image image to transform
+     * @param lightness lightness to set
+     * @param region pixels to change, or null for the whole image
+     * @param mode sequential or parallel execution
+     * @return the transformed image
+     */
+    public static Img SetLightness(Img image, double lightness, Region region, ExecutionMode mode) {
+        if (image.IsLazy()) {
+            return image.Defer(new FilterPipeline().Lightness(lightness).Within(region), mode);
         }
+        Metrics.Timer timer = Metrics.Start("lightness");
+        ColorLookupTable table = ColorLookupTable.ForLightness(lightness);
+        PixelWindow window = image.GetPixels(region);
+        try {
+            int[] pixels = window.GetPixels();
+            window.ForEachSpan(mode, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    pixels[i] = table.Apply(pixels[i]);
+                }
+            });
+        }
+        finally {
+            window.close();
+        }
+        Metrics.Stop(timer, window.GetPixelCount());
         return image;
     }
+
+    private static long Pixels(Img image) {
+        return image.GetWidth() * (long) image.GetHeight();
+    }
 }
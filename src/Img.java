@@ -1,9 +1,28 @@
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
 
 /**
  * This class represents an image and provides operations on top of an image such
@@ -13,19 +32,110 @@ import java.io.IOException;
  * That means that when this class's methods are called, the class simply calls
  * BufferedImage to do the actual work. We have this class to do some of the extra
  * work that needs to be done before calling BufferedImage, such as bit-shifting.
+ *
+ * The BufferedImage is always stored as TYPE_INT_RGB (or TYPE_INT_ARGB when the
+ * source has an alpha channel), so its pixels live in a single packed int[] that
+ * GetPixels exposes directly. Each int holds one pixel as 0xAARRGGBB, and the
+ * pixel at (x, y) is at index y * GetWidth() + x.
+ *
+ * Snapshot() makes a copy-on-write copy that shares the pixel array until one of
+ * the images is written to. Writes through SetPixel, SetRGB, SetRow and SetRegion
+ * only copy the TILE x TILE tiles they touch, and so do filters limited to a Region,
+ * which write through GetPixels(Region). GetPixels() hands out the whole array for
+ * writing, so on a shared image it copies everything first. Filters that leave
+ * their input alone can read a shared image through GetReadOnlyPixels() instead.
+ *
+ * Pixel arrays come from PixelBufferPool. Release() (or close(), so an Img works
+ * with try-with-resources) gives the array back for the next image; the image can't
+ * be used after that. While the pool is enabled, the array may be a little longer
+ * than GetWidth() * GetHeight(); the entries past the last pixel mean nothing.
+ *
+ * paint draws a copy scaled to the display height, made with Resampler and kept
+ * until the pixels change. Every method that can change pixels, GetPixels included,
+ * marks the copy out of date; code that goes on writing to the array from
+ * GetPixels() while the image is on screen should call MarkModified() when done.
+ *
+ * A lazy image (SetLazy(true)) doesn't run ImageManipulator filters right away.
+ * Each filter is appended to a FilterPipeline of pending steps and returns the
+ * image itself, rotations included. The pending steps are optimized with
+ * FilterPipeline.Optimize() and run the first time anything reads or writes the
+ * pixels, asks for the size, snapshots, draws or saves the image, so the filters
+ * fuse into as few passes as possible and an image inverted twice costs none.
+ * ExplainPending() shows the plan.
  */
-public class Img extends JPanel {
+public class Img extends JPanel implements AutoCloseable {
+    // JPanel is Serializable; images are never serialized, but the lint wants an id
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Side of the tiles a shared image copies on write
+     */
+    public static final int TILE = 64;
+
+    /**
+     * Height, in pixels, images are drawn at unless SetDisplayHeight says otherwise
+     */
+    public static final int DEFAULT_DISPLAY_HEIGHT = 800;
+
+    /** Bytes buffered between the encoder and the file */
+    private static final int SAVE_BUFFER = 1 << 18;
+
     private BufferedImage image;
+    private int[] pixels;
+    /** Set while pixels is shared with snapshots; pixels must not be written then */
+    private SharedPixels shared;
+    /** Tiles written since the pixels were shared, row by row; null for untouched tiles */
+    private int[][] tiles;
+
+    private int displayHeight = DEFAULT_DISPLAY_HEIGHT;
+    /** Scaled copy drawn by paint, current as long as displayVersion == version */
+    private BufferedImage display;
+    private long displayVersion;
+    /** Counts calls that may have changed the pixels */
+    private volatile long version;
+
+    private boolean lazy;
+    /** Filters deferred by a lazy image, or null if there are none */
+    private FilterPipeline pending;
+    private ExecutionMode pendingMode;
+    /** Set while pending steps run, so that the filters they call don't defer again */
+    private boolean evaluating;
+
+    /**
+     * A pixel array shared by an image and its snapshots, with the number of images
+     * that still read from it
+     */
+    private static class SharedPixels {
+        private final int[] data;
+        private int owners;
+
+        SharedPixels(int[] data, int owners) {
+            this.data = data;
+            this.owners = owners;
+        }
+    }
 
     // Constructors
 
     /**
-     * Creates an Img object from the image at the path specified
+     * Creates an Img object from the image at the path specified, in any format
+     * ImageIO can read or the raw format of RawImage
      * @param imageFilePath path to image
      * @throws IOException
      */
     public Img(String imageFilePath) throws IOException {
-        image = ImageIO.read(new File(imageFilePath));
+        Metrics.Timer timer = Metrics.Start("decode");
+        if (RawImage.IsRawImage(Paths.get(imageFilePath))) {
+            SetImage(RawImage.Read(Paths.get(imageFilePath)));
+        }
+        else {
+            BufferedImage decoded = ImageIO.read(new File(imageFilePath));
+            if (decoded == null) {
+                throw new IOException("Unsupported image format: " + imageFilePath);
+            }
+            SetImage(ToIntRaster(decoded));
+        }
+        Metrics.Stop(timer, GetWidth() * (long) GetHeight());
     }
 
     /**
@@ -34,7 +144,62 @@ public class Img extends JPanel {
      * @param yWidth height of the image
      */
     public Img(int xWidth, int yWidth) {
-        image = new BufferedImage(xWidth, yWidth, BufferedImage.TYPE_INT_RGB);
+        this(xWidth, yWidth, false);
+    }
+
+    /**
+     * Creates an empty image object with the size given by the params
+     * @param xWidth width of the image
+     * @param yWidth height of the image
+     * @param hasAlpha whether the image keeps an alpha channel
+     */
+    public Img(int xWidth, int yWidth, boolean hasAlpha) {
+        SetImage(NewIntImage(xWidth, yWidth, hasAlpha, PixelBufferPool.Acquire(xWidth * yWidth, true)));
+    }
+
+    /**
+     * Creates a snapshot of source that shares its pixels
+     */
+    private Img(Img source) {
+        if (source.pending != null) {
+            source.Evaluate();
+        }
+        synchronized (source) {
+            if (source.tiles != null) {
+                // start the snapshot from the source's current pixels, tiles included
+                source.Detach();
+            }
+            if (source.shared == null) {
+                source.shared = new SharedPixels(source.pixels, 1);
+            }
+            synchronized (source.shared) {
+                source.shared.owners++;
+            }
+            image = source.image;
+            pixels = source.pixels;
+            shared = source.shared;
+        }
+    }
+
+    /**
+     * Makes a copy of the image that costs no pixel copying up front. The copy and this
+     * image share their pixels until either one is written to; from then on each sees
+     * only its own changes. Use this to apply several filters to one decoded image:
+     *
+     *     ImageManipulator.ConvertToSepia(image.Snapshot());
+     *
+     * @return copy-on-write copy of the image
+     */
+    public Img Snapshot() {
+        return new Img(this);
+    }
+
+    /**
+     * Whether the image still shares its pixels with a snapshot
+     * @return true if writing to the image will copy pixels first
+     */
+    public boolean IsShared() {
+        return shared != null;
     }
 
     /**
@@ -44,7 +209,7 @@ public class Img extends JPanel {
      * @return RGB representation of the specified pixel
      */
     public RGB GetRGB(int xVal, int yVal) {
-        int rgb = image.getRGB(xVal, yVal);
+        int rgb = GetPixel(xVal, yVal);
         int red = (rgb >> 16) & 0x000000FF;
         int green = (rgb >> 8) & 0x000000FF;
         int blue = (rgb) & 0x000000FF;
@@ -61,8 +226,216 @@ public class Img extends JPanel {
         int rgbVal = ((rgb.GetRed() & 0x000000FF) << 16)
                         | ((rgb.GetGreen() & 0x000000FF) << 8)
                         | ((rgb.GetBlue() & 0x000000FF));
-        image.setRGB(xVal, yVal, rgbVal);
+        SetPixel(xVal, yVal, (GetPixel(xVal, yVal) & 0xFF000000) | rgbVal);
+    }
+
+    // Bulk pixel access
+
+    /**
+     * Gets the array backing this image. Changes to the array show up in the image
+     * right away, which lets filters run over every pixel without allocating. If the
+     * image shares its pixels with a snapshot, they are copied first.
+     * @return packed 0xAARRGGBB pixels in row-major order; with pooling enabled the
+     *      array may be longer than GetWidth() * GetHeight()
+     */
+    public int[] GetPixels() {
+        if (pending != null) {
+            Evaluate();
+        }
+        if (shared != null) {
+            Detach();
+        }
+        version++;
+        return pixels;
+    }
+
+    /**
+     * Gets the pixels in a region for reading and writing; see PixelWindow. Unlike
+     * GetPixels, this doesn't copy the whole image if it shares its pixels with a
+     * snapshot: only the tiles the region overlaps are copied, once the window is
+     * closed. A region covering half the image or more is cheaper to give the whole
+     * array for, so that is what it gets.
+     * @param region pixels to change, or null for the whole image
+     * @return window over the pixels; close it once done writing
+     */
+    public PixelWindow GetPixels(Region region) {
+        if (pending != null) {
+            Evaluate();
+        }
+        int width = GetWidth();
+        int height = GetHeight();
+        Region area = Region.Clip(region, width, height);
+        int left = area.GetX();
+        int top = area.GetY();
+        int count = area.GetWidth() * area.GetHeight();
+        if (count == 0) {
+            return new PixelWindow(this, new int[0], left, top, 0, 0, area.Translate(-left, -top), false);
+        }
+        if (shared == null || IsLastOwner() || 2L * count >= width * (long) height) {
+            return new PixelWindow(this, GetPixels(), 0, 0, width, height, area, false);
+        }
+        int[] window = GetRegion(left, top, area.GetWidth(), area.GetHeight(), PixelBufferPool.Acquire(count, false));
+        return new PixelWindow(this, window, left, top, area.GetWidth(), area.GetHeight(), area.Translate(-left, -top), true);
+    }
+
+    /**
+     * Lists the tiles written since the pixels were shared. Where two images share
+     * the same pixels, only these tiles of either one can differ from the other.
+     * @return indexes of the copied tiles, row by row; empty if nothing was copied
+     */
+    public synchronized int[] GetCopiedTiles() {
+        if (tiles == null) {
+            return new int[0];
+        }
+        int[] copied = new int[tiles.length];
+        int count = 0;
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null) {
+                copied[count++] = t;
+            }
+        }
+        return Arrays.copyOf(copied, count);
+    }
+
+    /**
+     * Whether two images still read the same shared pixels, tiles they copied aside
+     * @param other image to compare with
+     * @return true if both are snapshots of the same pixels
+     */
+    public boolean SharesPixelsWith(Img other) {
+        return shared != null && shared == other.shared;
+    }
+
+    /**
+     * Gets the pixels for reading only. Unlike GetPixels, this doesn't copy pixels that
+     * are shared with a snapshot, unless the image has changed since it was shared.
+     * @return packed 0xAARRGGBB pixels in row-major order; must not be modified
+     */
+    public int[] GetReadOnlyPixels() {
+        if (pending != null) {
+            Evaluate();
+        }
+        if (tiles != null) {
+            Detach();
+        }
+        return pixels;
+    }
+
+    /**
+     * Gets the packed pixel at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @return packed 0xAARRGGBB value of the pixel
+     */
+    public int GetPixel(int xVal, int yVal) {
+        if (pending != null) {
+            Evaluate();
+        }
+        int index = Index(xVal, yVal);
+        if (tiles != null) {
+            int[] tile = tiles[TileIndex(xVal, yVal)];
+            if (tile != null) {
+                return tile[TileOffset(xVal, yVal)];
+            }
+        }
+        return pixels[index];
+    }
 
+    /**
+     * Sets the packed pixel at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @param argb packed 0xAARRGGBB value to set
+     */
+    public void SetPixel(int xVal, int yVal, int argb) {
+        if (pending != null) {
+            Evaluate();
+        }
+        int index = Index(xVal, yVal);
+        version++;
+        if (shared != null) {
+            Tile(xVal, yVal)[TileOffset(xVal, yVal)] = argb;
+        }
+        else {
+            pixels[index] = argb;
+        }
+    }
+
+    /**
+     * Copies one row of the image into the given array
+     * @param yVal row to copy
+     * @param row array to copy into, or null to allocate one
+     * @return the array holding the row
+     */
+    public int[] GetRow(int yVal, int[] row) {
+        return GetRegion(0, yVal, GetWidth(), 1, row);
+    }
+
+    /**
+     * Overwrites one row of the image with the given pixels
+     * @param yVal row to overwrite
+     * @param row packed pixels, at least GetWidth() long
+     */
+    public void SetRow(int yVal, int[] row) {
+        SetRegion(0, yVal, GetWidth(), 1, row);
+    }
+
+    /**
+     * Copies a rectangular region of the image into the given array, row by row
+     * @param xVal x coordinate of the region's top left corner
+     * @param yVal y coordinate of the region's top left corner
+     * @param width width of the region
+     * @param height height of the region
+     * @param region array to copy into, or null to allocate one
+     * @return the array holding the region
+     */
+    public int[] GetRegion(int xVal, int yVal, int width, int height, int[] region) {
+        if (pending != null) {
+            Evaluate();
+        }
+        CheckRegion(xVal, yVal, width, height);
+        if (region == null) {
+            region = new int[width * height];
+        }
+        if (tiles != null) {
+            CopyTiles(xVal, yVal, width, height, region, false);
+            return region;
+        }
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, Index(xVal, yVal + row), region, row * width, width);
+        }
+        return region;
+    }
+
+    /**
+     * Overwrites a rectangular region of the image with the given pixels
+     * @param xVal x coordinate of the region's top left corner
+     * @param yVal y coordinate of the region's top left corner
+     * @param width width of the region
+     * @param height height of the region
+     * @param region packed pixels in row-major order, at least width * height long
+     */
+    public void SetRegion(int xVal, int yVal, int width, int height, int[] region) {
+        if (pending != null) {
+            Evaluate();
+        }
+        CheckRegion(xVal, yVal, width, height);
+        version++;
+        if (shared != null) {
+            CopyTiles(xVal, yVal, width, height, region, true);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(region, row * width, pixels, Index(xVal, yVal + row), width);
+        }
+    }
+
+    /**
+     * Whether the image keeps an alpha channel in the top byte of each pixel
+     * @return true if the image has an alpha channel
+     */
+    public boolean HasAlpha() {
+        return image.getColorModel().hasAlpha();
     }
 
     /**
@@ -70,6 +443,9 @@ public class Img extends JPanel {
      * @return width of the image
      */
     public int GetWidth() {
+        if (pending != null) {
+            Evaluate();
+        }
         return image.getWidth();
     }
 
@@ -78,6 +454,9 @@ public class Img extends JPanel {
      * @return height of the image
      */
     public int GetHeight() {
+        if (pending != null) {
+            Evaluate();
+        }
         return image.getHeight();
     }
 
@@ -88,26 +467,448 @@ public class Img extends JPanel {
      * @throws IOException
      */
     public void Save(String format, String savePath) throws IOException {
-        ImageIO.write(image, format, new File(savePath));
+        Save(savePath, SaveOptions.Of(format));
     }
 
     /**
-     * Returns the width of the image if the height was 800
+     * Saves the image to the given file path with the given encoder settings. The
+     * file is written through a buffered channel rather than ImageIO's unbuffered
+     * file stream.
+     * @param savePath path to save the image to
+     * @param options format and encoder settings
+     * @throws IOException
+     */
+    public void Save(String savePath, SaveOptions options) throws IOException {
+        if (pending != null) {
+            Evaluate();
+        }
+        Metrics.Timer timer = Metrics.Start("encode");
+        int[] data = GetReadOnlyPixels();
+        if (options.GetFormat().equals(RawImage.FORMAT)) {
+            RawImage.Write(data, GetWidth(), GetHeight(), HasAlpha(), Paths.get(savePath));
+            Metrics.Stop(timer, GetWidth() * (long) GetHeight());
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(savePath), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), SAVE_BUFFER)) {
+            if (options.UsesPngEncoder()) {
+                PngEncoder.Write(data, GetWidth(), GetHeight(), HasAlpha(), options, out);
+            }
+            else {
+                WriteImageIO(options, out);
+            }
+        }
+        Metrics.Stop(timer, GetWidth() * (long) GetHeight());
+    }
+
+    /**
+     * Returns the width of the image if the height was the display height
      * @return scaled width of image
      */
-    public int GetScaledWidth() { return (int) (800 * GetWidth() / (double) GetHeight());}
+    public int GetScaledWidth() { return Math.max(1, (int) (displayHeight * GetWidth() / (double) GetHeight())); }
+
+    /**
+     * Returns the height the image is drawn at
+     * @return the display height
+     */
+    public int GetScaledHeight() { return displayHeight; }
+
+    public int GetDisplayHeight() { return displayHeight; }
+
+    /**
+     * Sets the height the image is drawn at; the width follows from the aspect ratio
+     * @param height display height in pixels, DEFAULT_DISPLAY_HEIGHT unless set
+     */
+    public void SetDisplayHeight(int height) {
+        if (height <= 0) {
+            throw new IllegalArgumentException("Display height must be positive: " + height);
+        }
+        displayHeight = height;
+    }
+
+    /**
+     * Marks the scaled copy drawn by paint out of date, for code that writes to the
+     * array from GetPixels() while the image is shown
+     */
+    public void MarkModified() {
+        version++;
+    }
 
     /**
-     * Returns the scaled height of the image (800)
-     * @return 800
+     * Gets the image as paint draws it: GetScaledWidth() x GetScaledHeight(), scaled
+     * with the bilinear kernel. The scaled copy is kept, and only made again once the
+     * pixels or the display height change.
+     * @return the scaled image; must not be modified
      */
-    public int GetScaledHeight() { return 800; }
+    public synchronized BufferedImage GetDisplayImage() {
+        int width = GetScaledWidth();
+        int height = GetScaledHeight();
+        int[] data = GetReadOnlyPixels();
+        if (width == GetWidth() && height == GetHeight()) {
+            return image;
+        }
+        long current = version;
+        if (display == null || displayVersion != current || display.getWidth() != width || display.getHeight() != height) {
+            Metrics.Timer timer = Metrics.Start("display");
+            BufferedImage scaled = display != null && display.getWidth() == width && display.getHeight() == height
+                    && display.getColorModel().hasAlpha() == HasAlpha()
+                    ? display
+                    : NewIntImage(width, height, HasAlpha(), new int[width * height]);
+            Resampler.Resize(data, GetWidth(), GetHeight(), ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData(),
+                    width, height, HasAlpha(), Resampler.Kernel.BILINEAR, ExecutionMode.GetDefault());
+            display = scaled;
+            displayVersion = current;
+            Metrics.Stop(timer, GetWidth() * (long) GetHeight());
+        }
+        return display;
+    }
 
     /**
-     * Draws the image
+     * Draws the image at the display height
      * @param g
      */
     public void paint(Graphics g) {
-        g.drawImage(image.getScaledInstance(GetScaledWidth(), GetScaledHeight(), java.awt.Image.SCALE_DEFAULT), 0, 0, this);
+        g.drawImage(GetDisplayImage(), 0, 0, this);
+    }
+
+    private void WriteImageIO(SaveOptions options, OutputStream out) throws IOException {
+        BufferedImage output = image;
+        int[] rgb = null;
+        if (options.GetFormat().equals("jpeg") && HasAlpha()) {
+            // JPEG has no alpha channel, and ImageIO refuses to write ARGB as JPEG
+            rgb = PixelBufferPool.Acquire(GetWidth() * GetHeight(), false);
+            for (int i = 0; i < GetWidth() * GetHeight(); i++) {
+                rgb[i] = pixels[i] & 0xFFFFFF;
+            }
+            output = NewIntImage(GetWidth(), GetHeight(), false, rgb);
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(options.GetFormat());
+        if (!writers.hasNext()) {
+            throw new IOException("Unsupported image format: " + options.GetFormat());
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (options.GetFormat().equals("png") && options.GetCompressionLevel() >= 0) {
+                // ImageIO's PNG writer uses deflate level 9 - round(9 * quality)
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - options.GetCompressionLevel()) / 9f);
+            }
+            if (options.GetQuality() >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(options.GetQuality());
+            }
+            if (options.IsProgressive() && param.canWriteProgressive()) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(output, null, null), param);
+        }
+        finally {
+            writer.dispose();
+            PixelBufferPool.Release(rgb);
+        }
+    }
+
+    /**
+     * Gives the pixel array back to PixelBufferPool. If snapshots still share it, it
+     * is only given back once the last of them is released too. The image must not
+     * be used afterwards. Releasing twice does nothing.
+     */
+    public synchronized void Release() {
+        pending = null;
+        display = null;
+        ReleasePixels();
+    }
+
+    /**
+     * Same as Release(), for try-with-resources
+     */
+    @Override
+    public void close() {
+        Release();
+    }
+
+    // Lazy evaluation
+
+    /**
+     * Whether ImageManipulator filters are deferred until the pixels are needed
+     * @return true for a lazy image, except while its pending filters run
+     */
+    public boolean IsLazy() {
+        return lazy && !evaluating;
+    }
+
+    /**
+     * Makes the image lazy or eager. Making it eager runs the pending filters.
+     * @param lazy whether to defer filters
+     */
+    public void SetLazy(boolean lazy) {
+        this.lazy = lazy;
+        if (!lazy) {
+            Evaluate();
+        }
+    }
+
+    /**
+     * Appends filters to the pending steps. This is what ImageManipulator filters
+     * do with a lazy image; it works on any image.
+     * @param steps filters to run later
+     * @param mode execution mode to run the pending steps in; the last one given wins
+     * @return this image
+     */
+    public synchronized Img Defer(FilterPipeline steps, ExecutionMode mode) {
+        if (pending == null) {
+            pending = new FilterPipeline();
+        }
+        pending.Then(steps);
+        pendingMode = mode;
+        return this;
+    }
+
+    /**
+     * Describes the optimized plan for the pending steps; see FilterPipeline.Explain()
+     * @return multi-line description of the plan
+     */
+    public synchronized String ExplainPending() {
+        return (pending != null ? pending : new FilterPipeline()).Explain();
+    }
+
+    /**
+     * Runs the pending steps, if there are any. Called by everything that needs the
+     * pixels or the size.
+     */
+    public synchronized void Evaluate() {
+        if (pending == null) {
+            return;
+        }
+        FilterPipeline steps = pending.Optimize();
+        pending = null;
+        evaluating = true;
+        try {
+            Img result = steps.Apply(this, pendingMode);
+            if (result != this) {
+                Adopt(result);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            evaluating = false;
+        }
+        version++;
+    }
+
+    /**
+     * Takes over the pixels of an image a pending step created, like a rotation
+     */
+    private void Adopt(Img result) {
+        ReleasePixels();
+        synchronized (result) {
+            image = result.image;
+            pixels = result.pixels;
+            shared = result.shared;
+            tiles = result.tiles;
+            result.image = null;
+            result.pixels = null;
+            result.shared = null;
+            result.tiles = null;
+        }
+    }
+
+    private void ReleasePixels() {
+        if (pixels == null) {
+            return;
+        }
+        int[] data = pixels;
+        if (shared != null) {
+            synchronized (shared) {
+                data = --shared.owners == 0 ? shared.data : null;
+            }
+        }
+        pixels = null;
+        image = null;
+        shared = null;
+        tiles = null;
+        PixelBufferPool.Release(data);
+    }
+
+    private void SetImage(BufferedImage intImage) {
+        image = intImage;
+        pixels = ((DataBufferInt) intImage.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Stops sharing pixels: takes over the shared array if no snapshot uses it any
+     * more, or copies it otherwise, then applies the tiles written since
+     */
+    private synchronized void Detach() {
+        if (shared == null) {
+            return;
+        }
+        int[] data = shared.data;
+        boolean last;
+        synchronized (shared) {
+            last = shared.owners == 1;
+            if (last) {
+                shared.owners = 0;
+            }
+        }
+        if (!last) {
+            int[] copy = PixelBufferPool.Acquire(GetWidth() * GetHeight(), false);
+            System.arraycopy(data, 0, copy, 0, GetWidth() * GetHeight());
+            data = copy;
+            // only let go once the copy is done, so that the last owner can't start
+            // writing to the array while it is being copied
+            synchronized (shared) {
+                shared.owners--;
+            }
+        }
+
+        if (tiles != null) {
+            int width = GetWidth();
+            int tilesAcross = (width + TILE - 1) / TILE;
+            for (int t = 0; t < tiles.length; t++) {
+                int[] tile = tiles[t];
+                if (tile == null) {
+                    continue;
+                }
+                int x = (t % tilesAcross) * TILE;
+                int y = (t / tilesAcross) * TILE;
+                int tileWidth = Math.min(TILE, width - x);
+                for (int row = 0; row < tile.length / tileWidth; row++) {
+                    System.arraycopy(tile, row * tileWidth, data, (y + row) * width + x, tileWidth);
+                }
+            }
+        }
+        if (data != pixels) {
+            image = Wrap(image, data);
+        }
+        pixels = data;
+        shared = null;
+        tiles = null;
+    }
+
+    /**
+     * Whether no snapshot reads the shared pixels any more, so that Detach can take
+     * them over without copying
+     */
+    private boolean IsLastOwner() {
+        synchronized (shared) {
+            return shared.owners == 1;
+        }
+    }
+
+    /**
+     * Gets the private copy of the tile holding (x, y), copying it from the shared
+     * pixels the first time
+     */
+    private int[] Tile(int xVal, int yVal) {
+        int width = GetWidth();
+        if (tiles == null) {
+            tiles = new int[((width + TILE - 1) / TILE) * ((GetHeight() + TILE - 1) / TILE)][];
+        }
+        int index = TileIndex(xVal, yVal);
+        int[] tile = tiles[index];
+        if (tile == null) {
+            int x = xVal / TILE * TILE;
+            int y = yVal / TILE * TILE;
+            int tileWidth = Math.min(TILE, width - x);
+            int tileHeight = Math.min(TILE, GetHeight() - y);
+            tile = new int[tileWidth * tileHeight];
+            for (int row = 0; row < tileHeight; row++) {
+                System.arraycopy(pixels, (y + row) * width + x, tile, row * tileWidth, tileWidth);
+            }
+            tiles[index] = tile;
+        }
+        return tile;
+    }
+
+    private int TileIndex(int xVal, int yVal) {
+        return yVal / TILE * ((GetWidth() + TILE - 1) / TILE) + xVal / TILE;
+    }
+
+    private int TileOffset(int xVal, int yVal) {
+        return yVal % TILE * Math.min(TILE, GetWidth() - xVal / TILE * TILE) + xVal % TILE;
+    }
+
+    /**
+     * Copies a region between the array and a shared image, one tile-wide span of a
+     * row at a time. Writing copies the tiles it touches; reading uses the private
+     * tile where there is one, and the shared pixels elsewhere.
+     */
+    private void CopyTiles(int xVal, int yVal, int width, int height, int[] region, boolean write) {
+        for (int row = 0; row < height; row++) {
+            int y = yVal + row;
+            for (int x = xVal; x < xVal + width; ) {
+                int spanEnd = Math.min(xVal + width, (x / TILE + 1) * TILE);
+                int[] tile = write ? Tile(x, y) : tiles[TileIndex(x, y)];
+                int[] target = tile != null ? tile : pixels;
+                int offset = tile != null ? TileOffset(x, y) : y * GetWidth() + x;
+                if (write) {
+                    System.arraycopy(region, row * width + (x - xVal), target, offset, spanEnd - x);
+                }
+                else {
+                    System.arraycopy(target, offset, region, row * width + (x - xVal), spanEnd - x);
+                }
+                x = spanEnd;
+            }
+        }
+    }
+
+    private int Index(int xVal, int yVal) {
+        if (xVal < 0 || xVal >= GetWidth() || yVal < 0 || yVal >= GetHeight()) {
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds: (" + xVal + ", " + yVal + ")");
+        }
+        return yVal * GetWidth() + xVal;
+    }
+
+    private void CheckRegion(int xVal, int yVal, int width, int height) {
+        if (xVal < 0 || yVal < 0 || width < 0 || height < 0
+                || xVal + width > GetWidth() || yVal + height > GetHeight()) {
+            throw new ArrayIndexOutOfBoundsException("Region out of bounds: (" + xVal + ", " + yVal + ", "
+                    + width + ", " + height + ")");
+        }
+    }
+
+    /**
+     * Creates an image like template whose pixels are the given array
+     */
+    private static BufferedImage Wrap(BufferedImage template, int[] data) {
+        WritableRaster raster = Raster.createWritableRaster(template.getSampleModel(),
+                new DataBufferInt(data, template.getWidth() * template.getHeight()), null);
+        return new BufferedImage(template.getColorModel(), raster, template.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Copies a decoded image into an int-packed image so its pixels can be accessed
+     * as a single int[]. Images that are already int-packed are used as is.
+     */
+    private static BufferedImage ToIntRaster(BufferedImage decoded) {
+        int type = decoded.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (decoded.getType() == type) {
+            return decoded;
+        }
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        int[] data = PixelBufferPool.Acquire(width * height, false);
+        decoded.getRGB(0, 0, width, height, data, 0, width);
+        return NewIntImage(width, height, type == BufferedImage.TYPE_INT_ARGB, data);
+    }
+
+    /**
+     * Creates a TYPE_INT_RGB or TYPE_INT_ARGB image over the given array, which may
+     * be longer than width * height
+     */
+    static BufferedImage NewIntImage(int width, int height, boolean hasAlpha, int[] data) {
+        DirectColorModel model = hasAlpha
+                ? (DirectColorModel) ColorModel.getRGBdefault()
+                : new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, width * height), width, height,
+                width, model.getMasks(), null);
+        return new BufferedImage(model, raster, false, null);
     }
 }
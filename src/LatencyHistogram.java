@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of durations in nanoseconds with a fixed relative error,
+ * in the style of HdrHistogram. Values below 32 get a bucket each; above that,
+ * every power of two range is split into 16 equal buckets, so a recorded value is
+ * known to within 1/16 (6.25%) whatever its size. The whole range of long fits in
+ * 960 buckets, and recording is a few shifts and one atomic increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one duration
+     * @param nanos duration in nanoseconds; negative values count as 0
+     */
+    public void Record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        counts.incrementAndGet(BucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long GetCount() { return count.get(); }
+
+    public long GetTotalNanos() { return total.get(); }
+
+    public long GetMaxNanos() { return max.get(); }
+
+    /**
+     * @return average duration in nanoseconds, 0 if nothing was recorded
+     */
+    public double GetMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (double) n;
+    }
+
+    /**
+     * Gets the duration that the given percentage of the recorded durations don't exceed
+     * @param percentile 0 to 100
+     * @return upper end of the bucket holding that duration, or 0 if nothing was recorded
+     */
+    public long GetPercentileNanos(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(HighestInBucket(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int BucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long HighestInBucket(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
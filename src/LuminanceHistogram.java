@@ -0,0 +1,150 @@
+/**
+ * Counts how many pixels fall into each of a fixed number of luminance ranges.
+ * ConvertToBW uses it to find the median luminance without sorting every pixel:
+ * the histogram tells which range holds the median, and only the pixels in that
+ * range need to be looked at again to find the exact value.
+ *
+ * Luminance is PixelOperations.Luminance, which lies between 0 and 255.
+ */
+public class LuminanceHistogram {
+    /**
+     * Number of ranges. The ranges are narrow enough that the pixels in a single
+     * range are a tiny fraction of a typical photo.
+     */
+    public static final int BINS = 4096;
+
+    private final long[] counts = new long[BINS];
+    private long total;
+
+    /**
+     * Gets the range a luminance value falls into. Larger values never map to
+     * smaller ranges, so ranks in the histogram agree with ranks in sorted order.
+     * @param luminance luminance between 0 and 255
+     * @return range index between 0 and BINS - 1
+     */
+    public static int BinOf(double luminance) {
+        int bin = (int) (luminance * (BINS / 256.0));
+        return bin < 0 ? 0 : (bin >= BINS ? BINS - 1 : bin);
+    }
+
+    /**
+     * Adds the luminance of the pixels in [from, to) to the histogram
+     * @param pixels packed pixels
+     * @param from first index to add
+     * @param to index after the last one to add
+     */
+    public void Add(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            counts[BinOf(PixelOperations.Luminance(pixels[i]))]++;
+        }
+        total += to - from;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     * @param other histogram to add
+     */
+    public void Merge(LuminanceHistogram other) {
+        for (int i = 0; i < BINS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    /**
+     * Get the number of pixels added to the histogram
+     * @return number of pixels
+     */
+    public long GetTotal() {
+        return total;
+    }
+
+    /**
+     * Get the number of pixels in the given range
+     * @param bin range index
+     * @return number of pixels
+     */
+    public long GetCount(int bin) {
+        return counts[bin];
+    }
+
+    /**
+     * Finds the range holding the value at the given rank in sorted order
+     * @param rank 0-based rank, less than GetTotal()
+     * @return range index
+     */
+    public int BinOfRank(long rank) {
+        if (rank < 0 || rank >= total) {
+            throw new IllegalArgumentException("Rank out of range: " + rank);
+        }
+        long seen = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            seen += counts[bin];
+            if (rank < seen) {
+                return bin;
+            }
+        }
+        throw new IllegalStateException("Histogram counts do not add up");
+    }
+
+    /**
+     * Get the number of pixels in all ranges below the given one
+     * @param bin range index
+     * @return number of pixels with a smaller range index
+     */
+    public long CountBelow(int bin) {
+        long below = 0;
+        for (int i = 0; i < bin; i++) {
+            below += counts[i];
+        }
+        return below;
+    }
+
+    /**
+     * Finds the k-th smallest value (quickselect). Reorders the array.
+     * @param values values to select from
+     * @param length number of values in use at the front of the array
+     * @param k 0-based rank of the value to find
+     * @return the k-th smallest value
+     */
+    public static double Select(double[] values, int length, int k) {
+        int left = 0;
+        int right = length - 1;
+        while (left < right) {
+            // median of three keeps sorted and constant inputs from going quadratic
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) Swap(values, middle, left);
+            if (values[right] < values[left]) Swap(values, right, left);
+            if (values[right] < values[middle]) Swap(values, right, middle);
+            double pivot = values[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    Swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            }
+            else if (k >= i) {
+                left = i;
+            }
+            else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    private static void Swap(double[] values, int i, int j) {
+        double tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+}
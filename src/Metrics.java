@@ -0,0 +1,297 @@
+import javax.management.ConstructorParameters;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long each decode, filter and encode takes, how many pixels it
+ * processed and how many bytes it allocated. ImageManipulator, FilterPipeline and
+ * Img report every operation here:
+ *
+ *     Metrics.Timer timer = Metrics.Start("sepia");
+ *     ...
+ *     Metrics.Stop(timer, pixels);
+ *
+ * Metrics are off unless the JVM is started with -Dimagemanip.metrics=true or
+ * SetEnabled(true) is called. While off, Start returns null and Stop ignores it, so
+ * an operation pays for one volatile read.
+ *
+ * Allocated bytes come from the ThreadMXBean and only count the thread that ran the
+ * operation; with ExecutionMode.Parallel, allocations on the pool threads are missed.
+ *
+ * Once enabled, the metrics are also published as the MBean "imagemanip:type=Metrics"
+ * (see MetricsMXBean), so JConsole or VisualVM can watch a running Controller or batch.
+ */
+public class Metrics {
+    public static final String MBEAN_NAME = "imagemanip:type=Metrics";
+
+    private static final com.sun.management.ThreadMXBean THREADS = AllocationCounter();
+
+    private static volatile boolean enabled;
+    private static volatile boolean registered;
+    private static final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    static {
+        if ("true".equals(System.getProperty("imagemanip.metrics"))) {
+            SetEnabled(true);
+        }
+    }
+
+    /**
+     * An operation in progress, returned by Start
+     */
+    public static final class Timer {
+        private final String name;
+        private final long start;
+        private final long allocatedAtStart;
+
+        private Timer(String name, long start, long allocatedAtStart) {
+            this.name = name;
+            this.start = start;
+            this.allocatedAtStart = allocatedAtStart;
+        }
+    }
+
+    /**
+     * Everything recorded for one kind of operation
+     */
+    public static class Operation {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong pixels = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        public String GetName() { return name; }
+
+        public LatencyHistogram GetLatency() { return latency; }
+
+        public long GetCount() { return latency.GetCount(); }
+
+        public long GetPixels() { return pixels.get(); }
+
+        /** @return bytes allocated by the threads that ran the operation */
+        public long GetAllocatedBytes() { return allocatedBytes.get(); }
+
+        /** @return pixels processed per second while running this operation, in millions */
+        public double GetMegapixelsPerSecond() {
+            long nanos = latency.GetTotalNanos();
+            return nanos == 0 ? 0 : pixels.get() * 1e3 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.1f %10.1f",
+                    name, GetCount(), latency.GetMeanNanos() / 1e6, latency.GetPercentileNanos(50) / 1e6,
+                    latency.GetPercentileNanos(90) / 1e6, latency.GetPercentileNanos(99) / 1e6,
+                    latency.GetMaxNanos() / 1e6, GetMegapixelsPerSecond(), allocatedBytes.get() / 1e6);
+        }
+    }
+
+    /**
+     * One operation's metrics as a JMX composite value. JMX only recognizes
+     * JavaBean getter names, so these don't follow the rest of the code.
+     */
+    public static class Summary {
+        private final String name;
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+        private final double megapixelsPerSecond;
+        private final long allocatedBytes;
+
+        @ConstructorParameters({"name", "count", "meanMillis", "p50Millis", "p99Millis", "maxMillis",
+                "megapixelsPerSecond", "allocatedBytes"})
+        public Summary(String name, long count, double meanMillis, double p50Millis, double p99Millis,
+                       double maxMillis, double megapixelsPerSecond, long allocatedBytes) {
+            this.name = name;
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+            this.megapixelsPerSecond = megapixelsPerSecond;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public String getName() { return name; }
+        public long getCount() { return count; }
+        public double getMeanMillis() { return meanMillis; }
+        public double getP50Millis() { return p50Millis; }
+        public double getP99Millis() { return p99Millis; }
+        public double getMaxMillis() { return maxMillis; }
+        public double getMegapixelsPerSecond() { return megapixelsPerSecond; }
+        public long getAllocatedBytes() { return allocatedBytes; }
+    }
+
+    public static boolean IsEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off. Turning it on the first time also registers the MBean.
+     * @param enable whether to record operations
+     */
+    public static void SetEnabled(boolean enable) {
+        enabled = enable;
+        if (enable) {
+            RegisterMBean();
+        }
+    }
+
+    /**
+     * Starts timing an operation
+     * @param name name of the operation, such as "sepia"
+     * @return timer to pass to Stop, or null when metrics are off
+     */
+    public static Timer Start(String name) {
+        if (!enabled) {
+            return null;
+        }
+        return new Timer(name, System.nanoTime(), AllocatedBytes());
+    }
+
+    /**
+     * Records an operation started with Start
+     * @param timer timer returned by Start; null is ignored
+     * @param pixels number of pixels the operation processed
+     */
+    public static void Stop(Timer timer, long pixels) {
+        if (timer == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - timer.start;
+        long allocated = AllocatedBytes() - timer.allocatedAtStart;
+        Operation operation = operations.computeIfAbsent(timer.name, Operation::new);
+        operation.latency.Record(elapsed);
+        operation.pixels.addAndGet(pixels);
+        operation.allocatedBytes.addAndGet(allocated);
+    }
+
+    /**
+     * Gets what was recorded for an operation
+     * @param name name of the operation
+     * @return the operation, or null if it hasn't run while metrics were on
+     */
+    public static Operation Get(String name) {
+        return operations.get(name);
+    }
+
+    /**
+     * @return every operation recorded so far, sorted by name
+     */
+    public static List<Operation> GetOperations() {
+        List<Operation> list = new ArrayList<>(operations.values());
+        list.sort((a, b) -> a.GetName().compareTo(b.GetName()));
+        return list;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public static void Reset() {
+        operations.clear();
+    }
+
+    /**
+     * Formats every operation as a table with one row each
+     * @return the report
+     */
+    public static String Report() {
+        StringBuilder report = new StringBuilder(String.format("%-12s %7s %9s %9s %9s %9s %9s %9s %10s%n",
+                "operation", "count", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "MP/s", "alloc MB"));
+        for (Operation operation : GetOperations()) {
+            report.append(operation).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Prints Report() to the stream
+     * @param out stream to print to
+     */
+    public static void PrintReport(PrintStream out) {
+        out.print(Report());
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server, once
+     */
+    private static synchronized void RegisterMBean() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new Bean(), MetricsMXBean.class, true), new ObjectName(MBEAN_NAME));
+        }
+        catch (InstanceAlreadyExistsException e) {
+            // another class loader in this JVM already publishes its metrics
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("Can't register " + MBEAN_NAME, e);
+        }
+    }
+
+    private static long AllocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean AllocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return IsEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enable) {
+            SetEnabled(enable);
+        }
+
+        @Override
+        public String getReport() {
+            return Report();
+        }
+
+        @Override
+        public List<Summary> getOperations() {
+            List<Summary> summaries = new ArrayList<>();
+            for (Operation operation : GetOperations()) {
+                LatencyHistogram latency = operation.GetLatency();
+                summaries.add(new Summary(operation.GetName(), operation.GetCount(), latency.GetMeanNanos() / 1e6,
+                        latency.GetPercentileNanos(50) / 1e6, latency.GetPercentileNanos(99) / 1e6,
+                        latency.GetMaxNanos() / 1e6, operation.GetMegapixelsPerSecond(),
+                        operation.GetAllocatedBytes()));
+            }
+            return summaries;
+        }
+
+        @Override
+        public void reset() {
+            Reset();
+        }
+    }
+}
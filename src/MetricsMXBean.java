@@ -0,0 +1,27 @@
+import java.util.List;
+
+/**
+ * JMX view of Metrics, registered as "imagemanip:type=Metrics". JMX derives
+ * attribute names from JavaBean getters, so these methods are named the JavaBean
+ * way rather than like the rest of the code.
+ */
+public interface MetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return Metrics.Report() as text
+     */
+    String getReport();
+
+    /**
+     * @return latency, throughput and allocation of every operation recorded so far
+     */
+    List<Metrics.Summary> getOperations();
+
+    /**
+     * Forgets everything recorded so far
+     */
+    void reset();
+}
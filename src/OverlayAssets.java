@@ -0,0 +1,182 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache of the images InstagramFilter blends in (resources/halo.png and
+ * resources/decorative_grain.png).
+ *
+ * Each asset is decoded once into one byte array per channel. Because the overlay
+ * has to match the size of the image being filtered, the asset is also resampled
+ * (nearest neighbour) to each target size it is used at. Resampled copies are kept
+ * in an LRU cache keyed by asset, width and height, which holds at most
+ * GetCacheLimit() bytes, so processing many images of the same size resamples once.
+ */
+public class OverlayAssets {
+    public static final String HALO = "halo.png";
+    public static final String GRAIN = "decorative_grain.png";
+
+    private static final Map<String, Overlay> decoded = new LinkedHashMap<>();
+    private static final LinkedHashMap<String, Overlay> resampled = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cacheLimit = 128L << 20;
+    private static long cachedBytes;
+
+    /**
+     * An overlay image stored as one byte array per channel, row by row
+     */
+    public static class Overlay {
+        private final int width;
+        private final int height;
+        private final byte[] red;
+        private final byte[] green;
+        private final byte[] blue;
+
+        Overlay(int width, int height) {
+            this.width = width;
+            this.height = height;
+            red = new byte[width * height];
+            green = new byte[width * height];
+            blue = new byte[width * height];
+        }
+
+        public int GetWidth() { return width; }
+
+        public int GetHeight() { return height; }
+
+        /** Red channel; mask with 0xFF to read a value */
+        public byte[] GetRed() { return red; }
+
+        /** Green channel; mask with 0xFF to read a value */
+        public byte[] GetGreen() { return green; }
+
+        /** Blue channel; mask with 0xFF to read a value */
+        public byte[] GetBlue() { return blue; }
+
+        long GetBytes() {
+            return 3L * width * height;
+        }
+    }
+
+    /**
+     * Gets an asset resampled to the given size, from the cache if possible
+     * @param asset HALO or GRAIN
+     * @param width width to resample to
+     * @param height height to resample to
+     * @return the resampled overlay; must not be modified
+     * @throws IOException if the asset can't be loaded
+     */
+    public static Overlay Get(String asset, int width, int height) throws IOException {
+        String key = asset + "@" + width + "x" + height;
+        synchronized (resampled) {
+            Overlay cached = resampled.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Overlay overlay = Resample(Decoded(asset), width, height);
+        synchronized (resampled) {
+            Overlay raced = resampled.get(key);
+            if (raced != null) {
+                return raced;
+            }
+            if (overlay.GetBytes() <= cacheLimit) {
+                resampled.put(key, overlay);
+                cachedBytes += overlay.GetBytes();
+                Evict();
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * Gets the maximum number of bytes kept in resampled overlays
+     * @return cache limit in bytes
+     */
+    public static long GetCacheLimit() {
+        synchronized (resampled) {
+            return cacheLimit;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in resampled overlays, evicting the least
+     * recently used ones if needed. 0 turns the cache off.
+     * @param bytes cache limit in bytes
+     */
+    public static void SetCacheLimit(long bytes) {
+        synchronized (resampled) {
+            cacheLimit = bytes;
+            Evict();
+        }
+    }
+
+    private static void Evict() {
+        Iterator<Overlay> iterator = resampled.values().iterator();
+        while (cachedBytes > cacheLimit && iterator.hasNext()) {
+            cachedBytes -= iterator.next().GetBytes();
+            iterator.remove();
+        }
+    }
+
+    private static Overlay Decoded(String asset) throws IOException {
+        synchronized (decoded) {
+            Overlay overlay = decoded.get(asset);
+            if (overlay == null) {
+                BufferedImage image = Read(asset);
+                overlay = new Overlay(image.getWidth(), image.getHeight());
+                int[] row = new int[overlay.width];
+                for (int y = 0; y < overlay.height; y++) {
+                    image.getRGB(0, y, overlay.width, 1, row, 0, overlay.width);
+                    for (int x = 0; x < overlay.width; x++) {
+                        int i = y * overlay.width + x;
+                        overlay.red[i] = (byte) (row[x] >> 16);
+                        overlay.green[i] = (byte) (row[x] >> 8);
+                        overlay.blue[i] = (byte) row[x];
+                    }
+                }
+                decoded.put(asset, overlay);
+            }
+            return overlay;
+        }
+    }
+
+    /**
+     * Reads an asset from the classpath (where Maven copies resources/), falling
+     * back to the resources directory when running from the project directory
+     */
+    private static BufferedImage Read(String asset) throws IOException {
+        BufferedImage image;
+        try (InputStream stream = OverlayAssets.class.getResourceAsStream("/" + asset)) {
+            image = stream != null ? ImageIO.read(stream) : ImageIO.read(new File("resources", asset));
+        }
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + asset);
+        }
+        return image;
+    }
+
+    private static Overlay Resample(Overlay source, int width, int height) {
+        Overlay overlay = new Overlay(width, height);
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = (int) ((long) x * source.width / width);
+        }
+        for (int y = 0; y < height; y++) {
+            int sourceRow = (int) ((long) y * source.height / height) * source.width;
+            for (int x = 0; x < width; x++) {
+                int from = sourceRow + columns[x];
+                int to = y * width + x;
+                overlay.red[to] = source.red[from];
+                overlay.green[to] = source.green[from];
+                overlay.blue[to] = source.blue[from];
+            }
+        }
+        return overlay;
+    }
+}
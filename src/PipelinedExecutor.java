@@ -0,0 +1,307 @@
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs images through three stages, load, process and save, each on its own
+ * threads, so that while one image is being filtered the next ones are already
+ * being decoded and the previous ones encoded. A batch then keeps the CPUs and the
+ * disk busy at the same time instead of taking turns.
+ *
+ * The load and save stages mostly wait on I/O. They run on virtual threads when
+ * the JVM has them (Java 21 and later) and on a fixed pool of I/O threads
+ * otherwise. Either way each of them runs at most ioThreads tasks at once; on
+ * virtual threads a semaphore holds back the rest, so that a batch doesn't open
+ * every file at the same time. The process stage runs on a fixed pool, normally
+ * one thread per core.
+ *
+ * At most maxInFlight images are between the start of their load and the end of
+ * their save. Submit blocks while that many are in flight, which stops a fast
+ * loader from filling the heap with decoded images that the other stages can't
+ * keep up with.
+ *
+ * Every stage counts its queued and running tasks and how long tasks wait and run.
+ */
+public class PipelinedExecutor implements AutoCloseable {
+    /** Executors.newVirtualThreadPerTaskExecutor, or null before Java 21 */
+    private static final Method VIRTUAL_THREAD_EXECUTOR = FindVirtualThreadExecutor();
+
+    private final Stage load;
+    private final Stage process;
+    private final Stage save;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    /**
+     * One step of a task, which may throw
+     */
+    public interface Step<I, O> {
+        O Run(I input) throws Exception;
+    }
+
+    /**
+     * The threads of one stage together with its statistics
+     */
+    public static class Stage {
+        private final String name;
+        private final ExecutorService executor;
+        private final boolean virtual;
+        /** Limits the tasks running at once on virtual threads; null on a fixed pool */
+        private final Semaphore running;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxQueued = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong runNanos = new AtomicLong();
+        private final AtomicLong maxRunNanos = new AtomicLong();
+
+        Stage(String name, ExecutorService executor, boolean virtual, int maxRunning) {
+            this.name = name;
+            this.executor = executor;
+            this.virtual = virtual;
+            this.running = virtual ? new Semaphore(maxRunning) : null;
+        }
+
+        public String GetName() { return name; }
+
+        /** @return whether the stage runs on virtual threads */
+        public boolean IsVirtual() { return virtual; }
+
+        /** @return number of tasks waiting for a thread, or on virtual threads for a permit, right now */
+        public int GetQueueDepth() { return queued.get(); }
+
+        /** @return highest queue depth seen so far */
+        public int GetMaxQueueDepth() { return maxQueued.get(); }
+
+        /** @return number of tasks running right now */
+        public int GetActive() { return active.get(); }
+
+        /** @return number of tasks that finished, successfully or not */
+        public long GetCompleted() { return completed.get(); }
+
+        /** @return number of tasks that threw */
+        public long GetFailed() { return failed.get(); }
+
+        /** @return average time from being queued to starting, in milliseconds */
+        public double GetAverageWaitMillis() {
+            long count = completed.get();
+            return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+        }
+
+        /** @return average time a task ran, in milliseconds */
+        public double GetAverageRunMillis() {
+            long count = completed.get();
+            return count == 0 ? 0 : runNanos.get() / 1e6 / count;
+        }
+
+        /** @return longest time a task ran, in milliseconds */
+        public double GetMaxRunMillis() {
+            return maxRunNanos.get() / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %6d done %4d failed  queue %3d (max %3d)  wait %8.1f ms  run %8.1f ms (max %8.1f ms)%s",
+                    name, GetCompleted(), GetFailed(), GetQueueDepth(), GetMaxQueueDepth(),
+                    GetAverageWaitMillis(), GetAverageRunMillis(), GetMaxRunMillis(), virtual ? "  virtual" : "");
+        }
+
+        /**
+         * Runs the step on this stage once the previous future completes. If it
+         * completes exceptionally the step is skipped and the exception passed on.
+         */
+        <I, O> CompletableFuture<O> Then(CompletableFuture<I> previous, Step<I, O> step) {
+            CompletableFuture<O> next = new CompletableFuture<>();
+            previous.whenComplete((input, error) -> {
+                if (error != null) {
+                    next.completeExceptionally(error);
+                    return;
+                }
+                long queuedAt = System.nanoTime();
+                maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+                try {
+                    executor.execute(() -> Run(step, input, queuedAt, next));
+                }
+                catch (RejectedExecutionException e) {
+                    queued.decrementAndGet();
+                    next.completeExceptionally(e);
+                }
+            });
+            return next;
+        }
+
+        private <I, O> void Run(Step<I, O> step, I input, long queuedAt, CompletableFuture<O> next) {
+            if (running != null) {
+                running.acquireUninterruptibly();
+            }
+            long start = System.nanoTime();
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            waitNanos.addAndGet(start - queuedAt);
+
+            O output = null;
+            Throwable error = null;
+            try {
+                output = step.Run(input);
+            }
+            catch (Throwable e) {
+                error = e;
+            }
+            finally {
+                if (running != null) {
+                    running.release();
+                }
+            }
+
+            // statistics first, so they are up to date once the future completes
+            long elapsed = System.nanoTime() - start;
+            runNanos.addAndGet(elapsed);
+            maxRunNanos.accumulateAndGet(elapsed, Math::max);
+            if (error != null) {
+                failed.incrementAndGet();
+            }
+            completed.incrementAndGet();
+            active.decrementAndGet();
+
+            if (error != null) {
+                next.completeExceptionally(error);
+            }
+            else {
+                next.complete(output);
+            }
+        }
+    }
+
+    /**
+     * Creates an executor using one process thread per core, as many I/O tasks at
+     * once in each I/O stage, and up to twice that many images in flight
+     */
+    public PipelinedExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an executor
+     * @param ioThreads tasks running at once in each of the load and save stages; their
+     *      threads if virtual threads aren't available
+     * @param processThreads threads for the process stage
+     * @param maxInFlight maximum number of images between being loaded and saved
+     */
+    public PipelinedExecutor(int ioThreads, int processThreads, int maxInFlight) {
+        if (ioThreads < 1 || processThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Thread counts and maxInFlight must be at least 1");
+        }
+        load = IoStage("load", ioThreads);
+        process = new Stage("process", Executors.newFixedThreadPool(processThreads), false, processThreads);
+        save = IoStage("save", ioThreads);
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Whether the JVM supports virtual threads, which the I/O stages then use
+     * @return true on Java 21 and later
+     */
+    public static boolean HasVirtualThreads() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Queues one image. Blocks while maxInFlight images are already in flight.
+     * @param loader loads the image, on the load stage
+     * @param processor transforms the image, on the process stage
+     * @param saver saves the transformed image, on the save stage
+     * @return future that completes once the image is saved, or exceptionally with
+     *      the exception of the first step that threw
+     * @throws InterruptedException if interrupted while waiting to submit
+     */
+    public CompletableFuture<Img> Submit(Step<Void, Img> loader, Step<Img, Img> processor, Step<Img, Img> saver)
+            throws InterruptedException {
+        inFlight.acquire();
+        CompletableFuture<Img> saved;
+        try {
+            CompletableFuture<Img> loaded = load.Then(CompletableFuture.completedFuture(null), loader);
+            CompletableFuture<Img> processed = process.Then(loaded, processor);
+            saved = save.Then(processed, saver);
+        }
+        catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        saved.whenComplete((image, error) -> inFlight.release());
+        return saved;
+    }
+
+    /**
+     * Gets the stages in order, for monitoring while tasks run
+     * @return load, process and save stages
+     */
+    public List<Stage> GetStages() {
+        return Arrays.asList(load, process, save);
+    }
+
+    /**
+     * @return number of images between the start of their load and the end of their save
+     */
+    public int GetInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Waits for the images already submitted to be saved, then stops the stage threads
+     */
+    @Override
+    public void close() {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        for (Stage stage : GetStages()) {
+            stage.executor.shutdown();
+        }
+    }
+
+    private static Stage IoStage(String name, int threads) {
+        ExecutorService virtual = VirtualThreadExecutor();
+        return virtual != null ? new Stage(name, virtual, true, threads)
+                : new Stage(name, Executors.newFixedThreadPool(threads), false, threads);
+    }
+
+    /**
+     * Creates a virtual thread per task executor through reflection, so that this
+     * compiles and runs on Java versions without virtual threads
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    private static ExecutorService VirtualThreadExecutor() {
+        if (VIRTUAL_THREAD_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the factory of virtual thread executors once, without creating one
+     * @return the method, or null if the JVM has no virtual threads
+     */
+    private static Method FindVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of int[] pixel buffers, so that a batch of images reuses the same few large
+ * arrays instead of allocating new ones for every decode, new Img and rotation.
+ * Arrays of several megabytes are humongous allocations for G1, which are expensive
+ * and can force full collections.
+ *
+ * Buffers come in size classes, eight per power of two, so an array is at most
+ * 12.5% larger than requested and can be reused for any image of a similar size.
+ * Img draws its pixels from the pool and gives them back in Img.Release (or close,
+ * with try-with-resources). Arrays below MIN_POOLED_LENGTH aren't worth pooling and
+ * are allocated exactly.
+ *
+ * Each thread keeps the last buffer it released, up to THREAD_CACHE_LIMIT ints,
+ * and takes it back without touching the shared pool. Everything else goes to the
+ * shared pool, which holds at most GetLimit() bytes and drops buffers beyond that
+ * for the garbage collector.
+ *
+ * The pool is off unless the JVM is started with -Dimagemanip.pool=true or
+ * SetEnabled(true) is called. While off, Acquire allocates exactly the requested
+ * length and Release drops the buffer, as if there were no pool.
+ */
+public class PixelBufferPool {
+    /** Shortest array that is pooled: 256 KB */
+    public static final int MIN_POOLED_LENGTH = 1 << 16;
+    /** Longest array kept in a thread's cache: 64 MB */
+    public static final int THREAD_CACHE_LIMIT = 1 << 24;
+
+    private static final int CLASSES_PER_DOUBLING_BITS = 3;
+
+    private static volatile boolean enabled = "true".equals(System.getProperty("imagemanip.pool"));
+    private static volatile long limit = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    private static final Map<Integer, ConcurrentLinkedDeque<int[]>> pool = new ConcurrentHashMap<>();
+    private static final ThreadLocal<int[]> threadCache = new ThreadLocal<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private static final AtomicLong threadHits = new AtomicLong();
+    private static final AtomicLong poolHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong releases = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    public static boolean IsEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns pooling on or off. Turning it off empties the shared pool.
+     * @param enable whether to pool buffers
+     */
+    public static void SetEnabled(boolean enable) {
+        enabled = enable;
+        if (!enable) {
+            Clear();
+        }
+    }
+
+    /**
+     * @return maximum number of bytes the shared pool keeps
+     */
+    public static long GetLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of bytes the shared pool keeps. Buffers already pooled
+     * beyond the new limit are kept until they are taken.
+     * @param bytes limit in bytes
+     */
+    public static void SetLimit(long bytes) {
+        limit = bytes;
+    }
+
+    /**
+     * Gets a buffer of at least the given length
+     * @param length number of ints needed
+     * @param clear whether the first length ints must be 0; pass false when every
+     *      one of them will be overwritten anyway
+     * @return a buffer, possibly longer than length
+     */
+    public static int[] Acquire(int length, boolean clear) {
+        if (!enabled || length < MIN_POOLED_LENGTH) {
+            return new int[length];
+        }
+        int size = ClassSize(length);
+        int[] buffer = threadCache.get();
+        if (buffer != null && buffer.length == size) {
+            threadCache.remove();
+            threadHits.incrementAndGet();
+        }
+        else {
+            ConcurrentLinkedDeque<int[]> free = pool.get(size);
+            buffer = free == null ? null : free.pollFirst();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-4L * size);
+                poolHits.incrementAndGet();
+            }
+            else {
+                misses.incrementAndGet();
+                return new int[size];
+            }
+        }
+        if (clear) {
+            Arrays.fill(buffer, 0, length, 0);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back. The caller must not use it afterwards. Buffers that
+     * didn't come from Acquire are ignored unless their length is a size class.
+     * @param buffer buffer to give back
+     */
+    public static void Release(int[] buffer) {
+        if (!enabled || buffer == null || buffer.length < MIN_POOLED_LENGTH || ClassSize(buffer.length) != buffer.length) {
+            return;
+        }
+        releases.incrementAndGet();
+        if (buffer.length <= THREAD_CACHE_LIMIT) {
+            // the previous cached buffer moves on to the shared pool
+            int[] previous = threadCache.get();
+            threadCache.set(buffer);
+            if (previous == null) {
+                return;
+            }
+            buffer = previous;
+        }
+        long bytes = 4L * buffer.length;
+        if (pooledBytes.addAndGet(bytes) > limit) {
+            pooledBytes.addAndGet(-bytes);
+            dropped.incrementAndGet();
+            return;
+        }
+        pool.computeIfAbsent(buffer.length, size -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+    }
+
+    /**
+     * Rounds a length up to its size class: the next value with at most four
+     * significant bits
+     * @param length number of ints
+     * @return length of the buffers that serve it
+     */
+    public static int ClassSize(int length) {
+        if (length <= 1 << CLASSES_PER_DOUBLING_BITS) {
+            return length;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length - 1) - CLASSES_PER_DOUBLING_BITS;
+        long size = ((long) ((length - 1) >> shift) + 1) << shift;
+        return size > Integer.MAX_VALUE - 8 ? length : (int) size;
+    }
+
+    /**
+     * Empties the shared pool and the calling thread's cache. Counters are kept.
+     */
+    public static void Clear() {
+        pool.clear();
+        pooledBytes.set(0);
+        threadCache.remove();
+    }
+
+    /** @return bytes held by the shared pool, not counting thread caches */
+    public static long GetPooledBytes() { return pooledBytes.get(); }
+
+    /** @return acquires served from the calling thread's cache */
+    public static long GetThreadHits() { return threadHits.get(); }
+
+    /** @return acquires served from the shared pool */
+    public static long GetPoolHits() { return poolHits.get(); }
+
+    /** @return pooled-size acquires that had to allocate */
+    public static long GetMisses() { return misses.get(); }
+
+    /** @return buffers given back */
+    public static long GetReleases() { return releases.get(); }
+
+    /** @return buffers given back but dropped because the pool was full */
+    public static long GetDropped() { return dropped.get(); }
+
+    /**
+     * @return fraction of pooled-size acquires that reused a buffer, 0 to 1
+     */
+    public static double GetHitRate() {
+        long hits = threadHits.get() + poolHits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * Resets the hit and release counters
+     */
+    public static void ResetCounters() {
+        threadHits.set(0);
+        poolHits.set(0);
+        misses.set(0);
+        releases.set(0);
+        dropped.set(0);
+    }
+
+    /**
+     * @return one line with the hit rate and counters
+     */
+    public static String Report() {
+        return String.format("buffer pool: %.1f%% hit rate (%d thread cache hits, %d pool hits, %d misses), "
+                        + "%d released, %d dropped, %.1f MB pooled",
+                100 * GetHitRate(), GetThreadHits(), GetPoolHits(), GetMisses(), GetReleases(), GetDropped(),
+                GetPooledBytes() / 1e6);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Runs the grayscale, invert and sepia kernels over a range of packed pixels,
+ * using VectorKernels when the SIMD backend is available and enabled, and a plain
+ * loop over PixelOperations otherwise. Both give bit-identical results.
+ *
+ * The SIMD backend needs the jdk.incubator.vector module, which the JVM only loads
+ * when started with --add-modules jdk.incubator.vector. It can be turned off with
+ * -Dimagemanip.simd=false or SetSimdEnabled(false).
+ */
+public class PixelKernels {
+    private static final boolean SIMD_AVAILABLE =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private static volatile boolean simdEnabled =
+            SIMD_AVAILABLE && !"false".equals(System.getProperty("imagemanip.simd"));
+
+    /**
+     * Whether the jdk.incubator.vector module is loaded
+     * @return true if the SIMD backend can be used
+     */
+    public static boolean IsSimdAvailable() {
+        return SIMD_AVAILABLE;
+    }
+
+    /**
+     * Whether the kernels currently use the SIMD backend
+     * @return true if SIMD is in use
+     */
+    public static boolean IsSimdEnabled() {
+        return simdEnabled;
+    }
+
+    /**
+     * Turns the SIMD backend on or off. Turning it on has no effect when it isn't available.
+     * @param enabled whether to use SIMD
+     */
+    public static void SetSimdEnabled(boolean enabled) {
+        simdEnabled = enabled && SIMD_AVAILABLE;
+    }
+
+    /**
+     * PixelOperations.GrayScale as a PixelOperation whose ApplyToRange uses these kernels
+     */
+    public static final PixelOperation GRAY_SCALE = new PixelOperation() {
+        @Override
+        public int Apply(int pixel) {
+            return PixelOperations.GrayScale(pixel);
+        }
+
+        @Override
+        public void ApplyToRange(int[] pixels, int from, int to) {
+            GrayScale(pixels, from, to);
+        }
+    };
+
+    /**
+     * PixelOperations.Invert as a PixelOperation whose ApplyToRange uses these kernels
+     */
+    public static final PixelOperation INVERT = new PixelOperation() {
+        @Override
+        public int Apply(int pixel) {
+            return PixelOperations.Invert(pixel);
+        }
+
+        @Override
+        public void ApplyToRange(int[] pixels, int from, int to) {
+            Invert(pixels, from, to);
+        }
+    };
+
+    /**
+     * PixelOperations.Sepia as a PixelOperation whose ApplyToRange uses these kernels
+     */
+    public static final PixelOperation SEPIA = new PixelOperation() {
+        @Override
+        public int Apply(int pixel) {
+            return PixelOperations.Sepia(pixel);
+        }
+
+        @Override
+        public void ApplyToRange(int[] pixels, int from, int to) {
+            Sepia(pixels, from, to);
+        }
+    };
+
+    /**
+     * PixelOperations.SepiaFast as a PixelOperation whose ApplyToRange uses these kernels
+     */
+    public static final PixelOperation SEPIA_FAST = new PixelOperation() {
+        @Override
+        public int Apply(int pixel) {
+            return PixelOperations.SepiaFast(pixel);
+        }
+
+        @Override
+        public void ApplyToRange(int[] pixels, int from, int to) {
+            SepiaFast(pixels, from, to);
+        }
+    };
+
+    public static void GrayScale(int[] pixels, int from, int to) {
+        if (simdEnabled) {
+            VectorKernels.GrayScale(pixels, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            pixels[i] = PixelOperations.GrayScale(pixels[i]);
+        }
+    }
+
+    public static void Invert(int[] pixels, int from, int to) {
+        if (simdEnabled) {
+            VectorKernels.Invert(pixels, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            pixels[i] = PixelOperations.Invert(pixels[i]);
+        }
+    }
+
+    public static void Sepia(int[] pixels, int from, int to) {
+        if (simdEnabled) {
+            VectorKernels.Sepia(pixels, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            pixels[i] = PixelOperations.Sepia(pixels[i]);
+        }
+    }
+
+    public static void SepiaFast(int[] pixels, int from, int to) {
+        if (simdEnabled) {
+            VectorKernels.SepiaFast(pixels, from, to);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            pixels[i] = PixelOperations.SepiaFast(pixels[i]);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * A transformation that computes each output pixel from the input pixel at the
+ * same position alone, such as grayscale or sepia. Pixels are packed 0xAARRGGBB
+ * ints, as stored in Img.GetPixels().
+ */
+public interface PixelOperation {
+    /**
+     * Transforms one pixel
+     * @param pixel packed pixel
+     * @return transformed packed pixel
+     */
+    int Apply(int pixel);
+
+    /**
+     * Transforms pixels [from, to) of the array in place. Implementations can
+     * override this with a faster loop, as long as the result is the same as
+     * calling Apply on every pixel.
+     * @param pixels packed pixels
+     * @param from first index to transform
+     * @param to index after the last one to transform
+     */
+    default void ApplyToRange(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = Apply(pixels[i]);
+        }
+    }
+}
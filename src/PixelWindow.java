@@ -0,0 +1,107 @@
+/**
+ * The pixels of an image that a filter limited to a Region reads and writes, as
+ * given by Img.GetPixels(Region). Use it with try-with-resources:
+ *
+ *     try (PixelWindow window = image.GetPixels(region)) {
+ *         int[] pixels = window.GetPixels();
+ *         window.ForEachSpan(mode, (from, to) -> PixelKernels.Invert(pixels, from, to));
+ *     }
+ *
+ * On an image of its own, the window is the image's array and the spans index it
+ * directly. On an image that shares its pixels with a snapshot, the window is a
+ * copy of the region's bounding rectangle, GetWidth() pixels per row, and close()
+ * writes it back, which copies only the Img.TILE x Img.TILE tiles it overlaps.
+ * Either way, GetArea() walks the array the window hands out.
+ */
+public class PixelWindow implements AutoCloseable {
+    private final Img image;
+    private final int[] pixels;
+    /** Position of the window's first pixel in the image */
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int imageWidth;
+    /** The region, in the window's coordinates */
+    private final Region area;
+    /** Whether pixels is a copy that close() writes back */
+    private final boolean copy;
+    private boolean closed;
+
+    PixelWindow(Img image, int[] pixels, int x, int y, int width, int height, Region area, boolean copy) {
+        this.image = image;
+        this.pixels = pixels;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.imageWidth = image.GetWidth();
+        this.area = area;
+        this.copy = copy;
+    }
+
+    /**
+     * @return packed 0xAARRGGBB pixels, row by row; only those in GetArea() may be
+     *      read or written
+     */
+    public int[] GetPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return number of pixels in each row of GetPixels()
+     */
+    public int GetWidth() {
+        return width;
+    }
+
+    /**
+     * @return the region, clipped to the image and moved into the window's coordinates
+     */
+    public Region GetArea() {
+        return area;
+    }
+
+    /**
+     * @return number of pixels in the region
+     */
+    public long GetPixelCount() {
+        return area.GetPixelCount();
+    }
+
+    /**
+     * Runs a task over every span of the region, as indexes into GetPixels()
+     * @param mode sequential or parallel execution
+     * @param task work to run on each span
+     */
+    public void ForEachSpan(ExecutionMode mode, Region.SpanTask task) {
+        area.ForEachSpan(width, mode, task);
+    }
+
+    /**
+     * Converts an index into GetPixels() to the index of the same pixel in the image,
+     * for filters that read per-pixel data laid out like the whole image. A span can
+     * hold several rows of the window, each of which maps to a different place.
+     * @param index index into GetPixels()
+     * @return row * image width + column of the pixel
+     */
+    public int ImageIndex(int index) {
+        int row = index / width;
+        return (y + row) * imageWidth + x + index - row * width;
+    }
+
+    /**
+     * Writes the window back into the image if it is a copy
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (copy) {
+            image.SetRegion(x, y, width, height, pixels);
+            PixelBufferPool.Release(pixels);
+        }
+    }
+}
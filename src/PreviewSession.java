@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Edits a large image through a small proxy. Every filter is applied right away to
+ * a copy scaled down to the display height, so the result can be shown at once,
+ * and recorded in a FilterPipeline. The full resolution image is only computed
+ * from that history when it is needed: by Render() and Save(), or ahead of time on
+ * a background thread.
+ *
+ * The full resolution result is built up incrementally. A render applies only the
+ * steps recorded since the previous render, so rendering after every filter costs
+ * no more in total than rendering once at the end.
+ *
+ * Filters that look at the whole image, like bw, which picks its threshold from
+ * the median, see the proxy's pixels in the preview and may come out slightly
+ * differently at full resolution. The saved image is always the full resolution
+ * result of the recorded steps, exactly as if they had been applied to the image
+ * one by one. Steps limited to a Region are given in full resolution coordinates;
+ * the preview gets the region scaled down with it.
+ *
+ * Restore() rewinds or replays the history for undo and redo. The full resolution
+ * image can't be rewound, so if it had been rendered past a step that was undone,
+ * the next render starts over from the original.
+ */
+public class PreviewSession implements AutoCloseable {
+    private final Img original;
+    private FilterPipeline history = new FilterPipeline();
+    private final boolean background;
+    private final ExecutionMode mode;
+    /** Size of the preview relative to the original */
+    private final double previewScale;
+    /** Renders one at a time, in the order they were asked for */
+    private final ExecutorService renderer;
+    private Img preview;
+
+    // only touched by the renderer thread
+    private Img rendered;
+    private int renderedSteps;
+
+    /**
+     * Starts a session that renders in the background with the global execution mode
+     * @param original full resolution image; it is never modified
+     * @param previewHeight height of the proxy, usually Img.DEFAULT_DISPLAY_HEIGHT
+     */
+    public PreviewSession(Img original, int previewHeight) {
+        this(original, previewHeight, true, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Starts a session
+     * @param original full resolution image; it is never modified
+     * @param previewHeight height of the proxy; images no taller than this are their own proxy
+     * @param background whether to start rendering the full resolution image as soon
+     *      as a filter is applied, or only when Render or Save asks for it
+     * @param mode execution mode for the filters
+     */
+    public PreviewSession(Img original, int previewHeight, boolean background, ExecutionMode mode) {
+        this.original = original;
+        this.background = background;
+        this.mode = mode;
+        if (original.GetHeight() > previewHeight) {
+            int previewWidth = Math.max(1, (int) Math.round(original.GetWidth() * previewHeight / (double) original.GetHeight()));
+            preview = ImageManipulator.ResizeImage(original, previewWidth, previewHeight, Resampler.Kernel.BILINEAR, mode);
+        }
+        else {
+            preview = original.Snapshot();
+        }
+        previewScale = preview.GetHeight() / (double) original.GetHeight();
+        rendered = original.Snapshot();
+        renderer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "preview-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Applies filters to the preview and records them for the full resolution image
+     * @param steps filters to apply
+     * @return the updated preview
+     * @throws IOException
+     */
+    public synchronized Img Apply(FilterPipeline steps) throws IOException {
+        preview = steps.Scale(previewScale).Apply(preview, mode);
+        history.Then(steps);
+        if (background) {
+            ScheduleRender();
+        }
+        return preview;
+    }
+
+    /**
+     * Replaces the recorded filters and the preview, for undo and redo
+     * @param steps filters that lead from the original to the new preview
+     * @param newPreview the preview with those filters applied
+     */
+    public synchronized void Restore(FilterPipeline steps, Img newPreview) {
+        List<FilterPipeline.Step> old = history.GetSteps();
+        List<FilterPipeline.Step> restored = steps.GetSteps();
+        int common = 0;
+        while (common < old.size() && common < restored.size() && old.get(common) == restored.get(common)) {
+            common++;
+        }
+        int kept = common;
+        history = steps.Slice(0, restored.size());
+        preview = newPreview;
+        // queued behind any render of the old history, so renderedSteps is final by then
+        renderer.submit(() -> {
+            synchronized (this) {
+                if (renderedSteps > kept) {
+                    rendered.Release();
+                    rendered = original.Snapshot();
+                    renderedSteps = 0;
+                }
+            }
+        });
+        if (background) {
+            ScheduleRender();
+        }
+    }
+
+    /**
+     * @return the preview with every filter so far applied
+     */
+    public synchronized Img GetPreview() {
+        return preview;
+    }
+
+    /**
+     * @return the image the session started from
+     */
+    public Img GetOriginal() {
+        return original;
+    }
+
+    /**
+     * @return copy of the filters applied so far, in order
+     */
+    public synchronized FilterPipeline GetHistory() {
+        return history.Slice(0, history.GetSteps().size());
+    }
+
+    /**
+     * Gets the full resolution result of every filter applied so far, waiting for the
+     * render to finish
+     * @return the full resolution image; must not be modified or released, as later
+     *      renders continue from it
+     * @throws IOException if a filter failed
+     */
+    public Img Render() throws IOException {
+        try {
+            return ScheduleRender().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Rendering failed", e.getCause());
+        }
+    }
+
+    /**
+     * Saves the full resolution result of every filter applied so far
+     * @param path location in file system to save the image
+     * @param options format and encoder settings
+     * @throws IOException
+     */
+    public void Save(String path, SaveOptions options) throws IOException {
+        ImageManipulator.SaveImage(Render(), path, options);
+    }
+
+    /**
+     * Stops the renderer thread. Renders already asked for are finished first.
+     */
+    @Override
+    public void close() {
+        renderer.shutdown();
+    }
+
+    /**
+     * Asks the renderer to catch up with the steps recorded so far
+     */
+    private synchronized Future<Img> ScheduleRender() {
+        FilterPipeline steps = history;
+        int target = steps.GetSteps().size();
+        return renderer.submit(() -> {
+            FilterPipeline pending;
+            synchronized (this) {
+                pending = steps.Slice(renderedSteps, target);
+            }
+            if (!pending.GetSteps().isEmpty()) {
+                Img result = pending.Apply(rendered, mode);
+                if (result != rendered) {
+                    rendered.Release();
+                }
+                rendered = result;
+                renderedSteps = target;
+            }
+            return rendered;
+        });
+    }
+}
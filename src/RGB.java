@@ -122,37 +122,8 @@ public class RGB {
      * @return HSL representation of the pixel
      */
     public HSL ConvertToHSL() {
-        double r = red / (double) 255;
-        double g = green / (double) 255;
-        double b = blue / (double) 255;
-
-        double max = Math.max(r, Math.max(g, b));
-        double min = Math.min(r, Math.min(g, b));
-
-        double l = (max + min) / 2;
-        double delta = max - min;
-
-        double h = 0, s = 0;
-        if (delta < 0.00001)
-        {
-            h = 0;
-            s = 0;
-        }
-        else {
-            if (max == r) {
-                h = (g - b) / delta + (g < b ? 6 : 0);
-            }
-            else if (max == g) {
-                h = (b - r) / delta + 2;
-            }
-            else if (max == b) {
-                h = (r - g) / delta + 4;
-            }
-            h *= 60;
-
-            s = l > 0.5 ? delta / (2 - max - min) : delta / (max + min);
-        }
-
-        return new HSL((int) h, s, l);
+        double[] hsl = new double[3];
+        ColorConversions.RGBToHSL((red << 16) | (green << 8) | blue, hsl, 0);
+        return new HSL((int) hsl[0], hsl[1], hsl[2]);
     }
 }
\ No newline at end of file
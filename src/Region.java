@@ -0,0 +1,343 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * The part of an image a filter should change: a rectangle, optionally narrowed
+ * down by a bitmask over it. Pixels outside are left as they are, and a filter
+ * only visits the pixels inside, so its cost follows the size of the region
+ * rather than the size of the image:
+ *
+ *     ImageManipulator.ConvertToSepia(image, false, Region.Rectangle(40, 20, 200, 120), mode);
+ *
+ * Filters walk a region as spans: runs of consecutive pixels within one row, given
+ * as index ranges into the array of a PixelWindow (see Img.GetPixels(Region)). A
+ * rectangle as wide as that array is one span per band of rows; a mask is one span
+ * per run of set bits.
+ *
+ * Passing null wherever a region is expected means the whole image.
+ */
+public class Region {
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    /** Set bits mark pixels inside; null for a plain rectangle */
+    private final BitSet mask;
+    // position and row length of the mask, which a clipped region keeps
+    private final int maskX;
+    private final int maskY;
+    private final int maskWidth;
+
+    /**
+     * Work over the pixels [from, to) of an image: part of one row, or whole rows
+     * where the region is as wide as the image
+     */
+    public interface SpanTask {
+        void Run(int from, int to);
+    }
+
+    private Region(int x, int y, int width, int height, BitSet mask, int maskX, int maskY, int maskWidth) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.mask = mask;
+        this.maskX = maskX;
+        this.maskY = maskY;
+        this.maskWidth = maskWidth;
+    }
+
+    // Factories
+
+    /**
+     * @param x left column
+     * @param y top row
+     * @param width number of columns
+     * @param height number of rows
+     * @return rectangular region; the parts outside an image are ignored
+     */
+    public static Region Rectangle(int x, int y, int width, int height) {
+        RequireSize(width, height);
+        return new Region(x, y, width, height, null, x, y, width);
+    }
+
+    /**
+     * @param x left column of the mask
+     * @param y top row of the mask
+     * @param width number of columns in the mask
+     * @param height number of rows in the mask
+     * @param mask whether each pixel of the rectangle is inside, row by row
+     * @return masked region
+     */
+    public static Region Mask(int x, int y, int width, int height, boolean[] mask) {
+        RequireSize(width, height);
+        if (mask.length != width * height) {
+            throw new IllegalArgumentException("Mask must have " + width * height + " entries: " + mask.length);
+        }
+        BitSet bits = new BitSet(mask.length);
+        for (int i = 0; i < mask.length; i++) {
+            if (mask[i]) {
+                bits.set(i);
+            }
+        }
+        return new Region(x, y, width, height, bits, x, y, width);
+    }
+
+    /**
+     * @param x left column of the mask
+     * @param y top row of the mask
+     * @param width number of columns in the mask
+     * @param height number of rows in the mask
+     * @param mask bit row * width + column is set for each pixel inside; it is copied
+     * @return masked region
+     */
+    public static Region Mask(int x, int y, int width, int height, BitSet mask) {
+        RequireSize(width, height);
+        BitSet bits = (BitSet) mask.clone();
+        if (bits.length() > width * height) {
+            bits.clear(width * height, bits.length());
+        }
+        return new Region(x, y, width, height, bits, x, y, width);
+    }
+
+    /**
+     * Limits a region to the bounds of an image
+     * @param region region to clip, or null for the whole image
+     * @param imageWidth width of the image
+     * @param imageHeight height of the image
+     * @return region that lies within the image; possibly empty
+     */
+    public static Region Clip(Region region, int imageWidth, int imageHeight) {
+        if (region == null) {
+            return new Region(0, 0, imageWidth, imageHeight, null, 0, 0, imageWidth);
+        }
+        int left = Math.max(0, region.x);
+        int top = Math.max(0, region.y);
+        int right = Math.max(left, Math.min(imageWidth, region.x + region.width));
+        int bottom = Math.max(top, Math.min(imageHeight, region.y + region.height));
+        if (left == region.x && top == region.y && right - left == region.width && bottom - top == region.height) {
+            return region;
+        }
+        return new Region(left, top, right - left, bottom - top, region.mask, region.maskX, region.maskY, region.maskWidth);
+    }
+
+    // Getters
+
+    public int GetX() {
+        return x;
+    }
+
+    public int GetY() {
+        return y;
+    }
+
+    public int GetWidth() {
+        return width;
+    }
+
+    public int GetHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if a mask narrows the rectangle down
+     */
+    public boolean IsMasked() {
+        return mask != null;
+    }
+
+    /**
+     * @return true if the region holds no pixels
+     */
+    public boolean IsEmpty() {
+        return GetPixelCount() == 0;
+    }
+
+    /**
+     * Whether a pixel is in the region
+     * @param column x coordinate
+     * @param row y coordinate
+     * @return true if the pixel is inside
+     */
+    public boolean Contains(int column, int row) {
+        if (column < x || column >= x + width || row < y || row >= y + height) {
+            return false;
+        }
+        return mask == null || mask.get((row - maskY) * maskWidth + column - maskX);
+    }
+
+    /**
+     * @return number of pixels in the region
+     */
+    public long GetPixelCount() {
+        if (mask == null) {
+            return width * (long) height;
+        }
+        long count = 0;
+        for (int row = y; row < y + height; row++) {
+            int start = (row - maskY) * maskWidth + x - maskX;
+            for (int bit = mask.nextSetBit(start); bit >= 0 && bit < start + width; bit = mask.nextSetBit(bit)) {
+                int end = Math.min(start + width, mask.nextClearBit(bit));
+                count += end - bit;
+                bit = end;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scales the region, for use on a resized copy of the image. The rectangle grows
+     * to whole pixels; a mask takes the nearest pixel.
+     * @param scale ratio of the new size to the old one
+     * @return scaled region
+     */
+    public Region Scale(double scale) {
+        int left = (int) Math.floor(x * scale);
+        int top = (int) Math.floor(y * scale);
+        int newWidth = (int) Math.ceil((x + width) * scale) - left;
+        int newHeight = (int) Math.ceil((y + height) * scale) - top;
+        if (mask == null) {
+            return Rectangle(left, top, newWidth, newHeight);
+        }
+        BitSet bits = new BitSet(newWidth * newHeight);
+        for (int row = 0; row < newHeight; row++) {
+            int sourceRow = (int) ((top + row + 0.5) / scale);
+            for (int column = 0; column < newWidth; column++) {
+                if (Contains((int) ((left + column + 0.5) / scale), sourceRow)) {
+                    bits.set(row * newWidth + column);
+                }
+            }
+        }
+        return new Region(left, top, newWidth, newHeight, bits, left, top, newWidth);
+    }
+
+    /**
+     * Moves the region, mask included
+     * @param dx columns to move right
+     * @param dy rows to move down
+     * @return moved region
+     */
+    public Region Translate(int dx, int dy) {
+        if (dx == 0 && dy == 0) {
+            return this;
+        }
+        return new Region(x + dx, y + dy, width, height, mask, maskX + dx, maskY + dy, maskWidth);
+    }
+
+    // Walking the region
+
+    /**
+     * Runs a task over bands of the region's rows, like ExecutionMode.ForEachBand.
+     * The task gets image rows, and can walk the region's pixels in them with Spans.
+     * @param mode sequential or parallel execution
+     * @param task work to run on each band of rows [startRow, endRow)
+     */
+    public void ForEachBand(ExecutionMode mode, ExecutionMode.RowBandTask task) {
+        if (width == 0 || height == 0) {
+            return;
+        }
+        mode.ForEachBand(width, height, (startRow, endRow) -> task.Run(y + startRow, y + endRow));
+    }
+
+    /**
+     * Runs a task over every span of the region, split into bands by the mode
+     * @param imageWidth width of the image the region lies in; see Clip
+     * @param mode sequential or parallel execution
+     * @param task work to run on each span
+     */
+    public void ForEachSpan(int imageWidth, ExecutionMode mode, SpanTask task) {
+        ForEachBand(mode, (startRow, endRow) -> Spans(imageWidth, startRow, endRow, task));
+    }
+
+    /**
+     * Runs a task over the spans of the region in some of its rows, on this thread
+     * @param imageWidth width of the image the region lies in; see Clip
+     * @param startRow first image row to walk
+     * @param endRow image row after the last one to walk
+     * @param task work to run on each span
+     */
+    public void Spans(int imageWidth, int startRow, int endRow, SpanTask task) {
+        startRow = Math.max(startRow, y);
+        endRow = Math.min(endRow, y + height);
+        if (mask == null && x == 0 && width == imageWidth) {
+            if (startRow < endRow) {
+                task.Run(startRow * imageWidth, endRow * imageWidth);
+            }
+            return;
+        }
+        for (int row = startRow; row < endRow; row++) {
+            int first = row * imageWidth + x;
+            if (mask == null) {
+                task.Run(first, first + width);
+                continue;
+            }
+            // bits of the mask that cover this row of the region
+            int start = (row - maskY) * maskWidth + x - maskX;
+            int end = start + width;
+            for (int bit = mask.nextSetBit(start); bit >= 0 && bit < end; bit = mask.nextSetBit(bit)) {
+                int clear = Math.min(end, mask.nextClearBit(bit));
+                task.Run(first + bit - start, first + clear - start);
+                bit = clear;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Region)) {
+            return false;
+        }
+        Region region = (Region) other;
+        return x == region.x && y == region.y && width == region.width && height == region.height
+                && maskX == region.maskX && maskY == region.maskY && maskWidth == region.maskWidth
+                && Objects.equals(mask, region.mask);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(x, y, width, height, mask);
+    }
+
+    /**
+     * Describes the region. A masked one includes a digest of the mask and where
+     * the mask lies, so that different regions, and so the FilterPipelines that
+     * ResultCache keys on, never describe themselves the same way.
+     */
+    @Override
+    public String toString() {
+        String bounds = width + "x" + height + " at (" + x + ", " + y + ")";
+        if (mask == null) {
+            return bounds;
+        }
+        return bounds + " masked by " + MaskDigest() + " (" + maskWidth + " wide, from (" + maskX + ", " + maskY + "))";
+    }
+
+    /**
+     * @return first 16 hex digits of the SHA-256 of the mask's bits
+     */
+    private String MaskDigest() {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(mask.toByteArray());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+        StringBuilder hex = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void RequireSize(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Size must not be negative: " + width + " x " + height);
+        }
+    }
+}
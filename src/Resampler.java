@@ -0,0 +1,293 @@
+import java.util.Arrays;
+
+/**
+ * Static utility class that resizes packed pixel arrays (see Img.GetPixels).
+ *
+ * Resizing is separable: every row is first resampled to the new width, then every
+ * column of the result to the new height. The weights of the source pixels behind
+ * each output pixel depend only on its position, so they are computed once per
+ * resize as 14 bit fixed point and reused for every row or column. When shrinking,
+ * the kernel is stretched by the scale factor so that every source pixel counts,
+ * which is what keeps thumbnails from aliasing.
+ *
+ * Shrinking by half or more first halves the image with HalveRows, averaging each
+ * 2 x 2 block, as often as the kernel allows. That costs one add per source pixel
+ * and channel, where the kernel costs one multiply-add per source pixel per tap, so
+ * large reductions run several times faster. A reduction by an exact power of two
+ * is nothing but halving.
+ */
+public class Resampler {
+    /**
+     * Weighting of the source pixels around an output pixel
+     */
+    public enum Kernel {
+        /** Average of the source pixels the output pixel covers; fastest, blocky when enlarging */
+        BOX(0.5),
+        /** Triangle filter: linear interpolation when enlarging, a tent-weighted average when shrinking */
+        BILINEAR(1),
+        /** Windowed sinc with 3 lobes; sharpest, slowest, and may ring slightly at hard edges */
+        LANCZOS(3);
+
+        private final double support;
+
+        Kernel(double support) {
+            this.support = support;
+        }
+
+        /**
+         * @return radius beyond which the kernel is 0, in source pixels at scale 1
+         */
+        public double GetSupport() {
+            return support;
+        }
+
+        double Weight(double x) {
+            switch (this) {
+                case BOX:
+                    return x >= -0.5 && x < 0.5 ? 1 : 0;
+                case BILINEAR:
+                    return Math.max(0, 1 - Math.abs(x));
+                default:
+                    return x > -3 && x < 3 ? Sinc(x) * Sinc(x / 3) : 0;
+            }
+        }
+
+        /**
+         * Whether an image may be halved before this kernel runs, without going below
+         * the given size. Lanczos keeps at least twice the target so its lobes still
+         * see the original detail.
+         */
+        boolean CanHalve(int size, int target) {
+            return (size + 1) / 2 >= (this == LANCZOS ? 2 * target : target);
+        }
+
+        private static double Sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+    }
+
+    private static final int PRECISION_BITS = 14;
+    private static final int ROUNDING = 1 << (PRECISION_BITS - 1);
+
+    /**
+     * Resizes an image
+     * @param source packed source pixels, row by row
+     * @param width width of the source
+     * @param height height of the source
+     * @param destination array to write the resized image to, at least newWidth * newHeight long
+     * @param newWidth width to resize to
+     * @param newHeight height to resize to
+     * @param alpha whether to resample the alpha channel too; if not, it is set to 0xFF
+     * @param kernel how to weigh source pixels
+     * @param mode sequential or parallel execution
+     */
+    public static void Resize(int[] source, int width, int height, int[] destination, int newWidth, int newHeight,
+                              boolean alpha, Kernel kernel, ExecutionMode mode) {
+        if (newWidth <= 0 || newHeight <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + newWidth + " x " + newHeight);
+        }
+        int[] current = source;
+        int[] scratch = null;
+        while (kernel.CanHalve(width, newWidth) && kernel.CanHalve(height, newHeight)) {
+            int halfWidth = (width + 1) / 2;
+            int halfHeight = (height + 1) / 2;
+            int[] half = halfWidth == newWidth && halfHeight == newHeight
+                    ? destination
+                    : PixelBufferPool.Acquire(halfWidth * halfHeight, false);
+            int[] from = current;
+            int fromWidth = width;
+            int fromHeight = height;
+            mode.ForEachBand(halfWidth, halfHeight,
+                    (startRow, endRow) -> HalveRows(from, fromWidth, fromHeight, half, alpha, startRow, endRow));
+            PixelBufferPool.Release(scratch);
+            scratch = half == destination ? null : half;
+            current = half;
+            width = halfWidth;
+            height = halfHeight;
+        }
+
+        if (current == destination) {
+            return;
+        }
+        if (width == newWidth && height == newHeight) {
+            System.arraycopy(current, 0, destination, 0, newWidth * newHeight);
+        }
+        else if (width == newWidth) {
+            ResizeColumns(current, width, height, destination, newHeight, alpha, kernel, mode);
+        }
+        else if (height == newHeight) {
+            ResizeRows(current, width, height, destination, newWidth, alpha, kernel, mode);
+        }
+        else {
+            int[] rows = PixelBufferPool.Acquire(newWidth * height, false);
+            ResizeRows(current, width, height, rows, newWidth, alpha, kernel, mode);
+            ResizeColumns(rows, newWidth, height, destination, newHeight, alpha, kernel, mode);
+            PixelBufferPool.Release(rows);
+        }
+        PixelBufferPool.Release(scratch);
+    }
+
+    /**
+     * Averages each 2 x 2 block of the source into one pixel of the destination, for
+     * destination rows [startRow, endRow). The destination is (width + 1) / 2 wide
+     * and (height + 1) / 2 tall; at an odd edge the last source row or column is
+     * averaged with itself.
+     * @param source packed source pixels, width x height
+     * @param width width of the source
+     * @param height height of the source
+     * @param destination array to write the halved image to
+     * @param alpha whether to average the alpha channel too; if not, it is set to 0xFF
+     * @param startRow first destination row to write
+     * @param endRow destination row after the last one to write
+     */
+    public static void HalveRows(int[] source, int width, int height, int[] destination, boolean alpha,
+                                 int startRow, int endRow) {
+        int halfWidth = (width + 1) / 2;
+        for (int y = startRow; y < endRow; y++) {
+            int top = 2 * y * width;
+            int bottom = Math.min(2 * y + 1, height - 1) * width;
+            int target = y * halfWidth;
+            for (int x = 0; x < halfWidth; x++) {
+                int left = 2 * x;
+                int right = Math.min(left + 1, width - 1);
+                int p0 = source[top + left];
+                int p1 = source[top + right];
+                int p2 = source[bottom + left];
+                int p3 = source[bottom + right];
+                // average the red and blue channels together, then alpha and green,
+                // each in its own 16 bits so the sums can't carry into a neighbour
+                int redBlue = ((p0 & 0xFF00FF) + (p1 & 0xFF00FF) + (p2 & 0xFF00FF) + (p3 & 0xFF00FF) + 0x20002) >>> 2;
+                int alphaGreen = (((p0 >>> 8) & 0xFF00FF) + ((p1 >>> 8) & 0xFF00FF) + ((p2 >>> 8) & 0xFF00FF)
+                        + ((p3 >>> 8) & 0xFF00FF) + 0x20002) >>> 2;
+                int pixel = (redBlue & 0xFF00FF) | ((alphaGreen & 0xFF00FF) << 8);
+                destination[target + x] = alpha ? pixel : pixel | 0xFF000000;
+            }
+        }
+    }
+
+    /**
+     * Resamples every row to a new width
+     */
+    private static void ResizeRows(int[] source, int width, int height, int[] destination, int newWidth,
+                                   boolean alpha, Kernel kernel, ExecutionMode mode) {
+        Weights weights = new Weights(width, newWidth, kernel);
+        mode.ForEachBand(newWidth, height, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int row = y * width;
+                int target = y * newWidth;
+                for (int x = 0; x < newWidth; x++) {
+                    int first = row + weights.first[x];
+                    int offset = x * weights.taps;
+                    destination[target + x] = Sum(source, first, weights.count[x], weights.values, offset, alpha);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resamples every column to a new height. Each output row is accumulated from
+     * whole source rows, so both arrays are read and written along rows.
+     */
+    private static void ResizeColumns(int[] source, int width, int height, int[] destination, int newHeight,
+                                      boolean alpha, Kernel kernel, ExecutionMode mode) {
+        Weights weights = new Weights(height, newHeight, kernel);
+        mode.ForEachBand(width, newHeight, (startRow, endRow) -> {
+            // running sums of one output row, four channels per pixel
+            int[] sums = new int[4 * width];
+            for (int y = startRow; y < endRow; y++) {
+                Arrays.fill(sums, ROUNDING);
+                for (int i = 0; i < weights.count[y]; i++) {
+                    int row = (weights.first[y] + i) * width;
+                    int weight = weights.values[y * weights.taps + i];
+                    for (int x = 0, sum = 0; x < width; x++, sum += 4) {
+                        int pixel = source[row + x];
+                        sums[sum] += (pixel >>> 24) * weight;
+                        sums[sum + 1] += ((pixel >> 16) & 0xFF) * weight;
+                        sums[sum + 2] += ((pixel >> 8) & 0xFF) * weight;
+                        sums[sum + 3] += (pixel & 0xFF) * weight;
+                    }
+                }
+                int target = y * width;
+                for (int x = 0, sum = 0; x < width; x++, sum += 4) {
+                    destination[target + x] = (alpha ? Clamp(sums[sum]) : 0xFF) << 24 | Clamp(sums[sum + 1]) << 16
+                            | Clamp(sums[sum + 2]) << 8 | Clamp(sums[sum + 3]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Weighs count consecutive source pixels, starting at index first
+     */
+    private static int Sum(int[] source, int first, int count, int[] weights, int offset, boolean alpha) {
+        int a = ROUNDING;
+        int r = ROUNDING;
+        int g = ROUNDING;
+        int b = ROUNDING;
+        for (int i = 0; i < count; i++) {
+            int pixel = source[first + i];
+            int weight = weights[offset + i];
+            a += (pixel >>> 24) * weight;
+            r += ((pixel >> 16) & 0xFF) * weight;
+            g += ((pixel >> 8) & 0xFF) * weight;
+            b += (pixel & 0xFF) * weight;
+        }
+        return (alpha ? Clamp(a) : 0xFF) << 24 | Clamp(r) << 16 | Clamp(g) << 8 | Clamp(b);
+    }
+
+    private static int Clamp(int sum) {
+        int value = sum >> PRECISION_BITS;
+        return value < 0 ? 0 : Math.min(value, 0xFF);
+    }
+
+    /**
+     * Fixed point weights of the source pixels behind each output pixel along one axis
+     */
+    private static class Weights {
+        /** First source pixel of each output pixel */
+        private final int[] first;
+        /** Number of source pixels of each output pixel */
+        private final int[] count;
+        /** Maximum count; the weights of output pixel i start at values[i * taps] */
+        private final int taps;
+        private final int[] values;
+
+        Weights(int size, int newSize, Kernel kernel) {
+            double scale = size / (double) newSize;
+            // stretch the kernel when shrinking so it covers every source pixel
+            double stretch = Math.max(1, scale);
+            double support = kernel.GetSupport() * stretch;
+            taps = (int) Math.ceil(support) * 2 + 1;
+            first = new int[newSize];
+            count = new int[newSize];
+            values = new int[newSize * taps];
+
+            double[] exact = new double[taps];
+            for (int i = 0; i < newSize; i++) {
+                double center = (i + 0.5) * scale;
+                int start = Math.max(0, (int) (center - support + 0.5));
+                int end = Math.min(size, (int) (center + support + 0.5));
+                double total = 0;
+                for (int j = start; j < end; j++) {
+                    exact[j - start] = kernel.Weight((j + 0.5 - center) / stretch);
+                    total += exact[j - start];
+                }
+                if (total == 0) {
+                    // a box narrower than a pixel can miss every center; take the nearest pixel
+                    start = Math.min(size - 1, (int) center);
+                    end = start + 1;
+                    exact[0] = total = 1;
+                }
+                first[i] = start;
+                count[i] = end - start;
+                for (int j = 0; j < end - start; j++) {
+                    values[i * taps + j] = (int) Math.round(exact[j] / total * (1 << PRECISION_BITS));
+                }
+            }
+        }
+    }
+}
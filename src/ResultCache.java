@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe cache of filter results, so that applying the same FilterPipeline to
+ * the same image again returns the earlier result instead of recomputing it.
+ *
+ * Results are keyed by a SHA-256 hash of the source (its pixels, or the bytes of
+ * its file) together with the pipeline's steps and parameters as printed by
+ * FilterPipeline.toString. Custom steps are only told apart by their names, so
+ * don't cache pipelines where one name stands for different operations.
+ *
+ * There are two tiers. The memory tier is an LRU cache of decoded results that
+ * holds at most GetMemoryLimit() bytes of pixels. The optional disk tier keeps
+ * every result as a PNG in a directory, which survives restarts and lets
+ * SaveImage copy the encoded file instead of encoding again. The disk tier isn't
+ * bounded; Clear() empties both tiers.
+ *
+ * Unlike ImageManipulator, the cache never modifies the image passed in: it
+ * filters a snapshot, and hands out snapshots of the cached result.
+ */
+public class ResultCache {
+    private final LinkedHashMap<String, Img> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Path diskDirectory;
+    private long memoryLimit;
+    private long cachedBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache that only keeps results in memory
+     * @param memoryLimit maximum number of bytes of pixels to keep
+     */
+    public ResultCache(long memoryLimit) {
+        this(memoryLimit, null);
+    }
+
+    /**
+     * Creates a cache that keeps results in memory and as PNGs on disk
+     * @param memoryLimit maximum number of bytes of pixels to keep in memory
+     * @param diskDirectory directory for the PNGs, created if needed; null for no disk tier
+     */
+    public ResultCache(long memoryLimit, Path diskDirectory) {
+        this.memoryLimit = memoryLimit;
+        this.diskDirectory = diskDirectory;
+    }
+
+    /**
+     * Applies the pipeline to the image, or gets the result from the cache, using the
+     * global execution mode
+     * @param source image to transform; not modified
+     * @param pipeline filters to apply
+     * @return the transformed image
+     * @throws IOException
+     */
+    public Img Apply(Img source, FilterPipeline pipeline) throws IOException {
+        return Apply(source, pipeline, ExecutionMode.GetDefault());
+    }
+
+    /**
+     * Applies the pipeline to the image, or gets the result from the cache
+     * @param source image to transform; not modified
+     * @param pipeline filters to apply
+     * @param mode execution mode for the filters on a miss
+     * @return the transformed image
+     * @throws IOException
+     */
+    public Img Apply(Img source, FilterPipeline pipeline, ExecutionMode mode) throws IOException {
+        String key = HashPixels(source) + "|" + pipeline;
+        return Lookup(key, () -> pipeline.Apply(source.Snapshot(), mode));
+    }
+
+    /**
+     * Loads the image file and applies the pipeline, or gets the result from the
+     * cache. The key is a hash of the file's bytes, so a hit doesn't decode the file.
+     * @param sourceFile image to transform
+     * @param pipeline filters to apply
+     * @param mode execution mode for the filters on a miss
+     * @return the transformed image
+     * @throws IOException
+     */
+    public Img Apply(Path sourceFile, FilterPipeline pipeline, ExecutionMode mode) throws IOException {
+        String key = HashFile(sourceFile) + "|" + pipeline;
+        return Lookup(key, () -> pipeline.Apply(ImageManipulator.LoadImage(sourceFile.toString()), mode));
+    }
+
+    /**
+     * Saves the result of applying the pipeline to the image file as a PNG (see
+     * ImageManipulator.SaveImage). If the disk tier already has the result, the PNG
+     * is copied without decoding or encoding anything.
+     * @param sourceFile image to transform
+     * @param pipeline filters to apply
+     * @param output file to save the result to
+     * @param mode execution mode for the filters on a miss
+     * @throws IOException
+     */
+    public void SaveImage(Path sourceFile, FilterPipeline pipeline, Path output, ExecutionMode mode)
+            throws IOException {
+        String key = HashFile(sourceFile) + "|" + pipeline;
+        Path file = DiskFile(key);
+        if (file != null && Files.isRegularFile(file)) {
+            diskHits.incrementAndGet();
+            Files.copy(file, output, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Img result = Lookup(key, () -> pipeline.Apply(ImageManipulator.LoadImage(sourceFile.toString()), mode));
+        if (file != null && Files.isRegularFile(file)) {
+            // a miss just encoded the result into the disk tier
+            Files.copy(file, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            ImageManipulator.SaveImage(result, output.toString());
+        }
+    }
+
+    /**
+     * Hashes an image's size and pixels
+     * @param image image to hash
+     * @return SHA-256 of the image as hex
+     */
+    public static String HashPixels(Img image) {
+        MessageDigest digest = NewDigest();
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.putInt(image.GetWidth()).putInt(image.GetHeight()).put((byte) (image.HasAlpha() ? 1 : 0));
+        digest.update(header.array());
+
+        int[] pixels = image.GetReadOnlyPixels();
+        int count = image.GetWidth() * image.GetHeight();
+        ByteBuffer chunk = ByteBuffer.allocate(64 << 10);
+        IntBuffer ints = chunk.asIntBuffer();
+        for (int i = 0; i < count; i += ints.capacity()) {
+            int length = Math.min(ints.capacity(), count - i);
+            ints.clear();
+            ints.put(pixels, i, length);
+            digest.update(chunk.array(), 0, length * 4);
+        }
+        return Hex(digest.digest());
+    }
+
+    /**
+     * Hashes a file's bytes
+     * @param file file to hash
+     * @return SHA-256 of the file as hex
+     * @throws IOException
+     */
+    public static String HashFile(Path file) throws IOException {
+        MessageDigest digest = NewDigest();
+        byte[] buffer = new byte[64 << 10];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Hex(digest.digest());
+    }
+
+    /**
+     * Empties both tiers. Counters are kept.
+     * @throws IOException if a cached PNG can't be deleted
+     */
+    public void Clear() throws IOException {
+        synchronized (memory) {
+            memory.clear();
+            cachedBytes = 0;
+        }
+        if (diskDirectory != null && Files.isDirectory(diskDirectory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(diskDirectory, "*.png")) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    public long GetMemoryLimit() {
+        synchronized (memory) {
+            return memoryLimit;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes of pixels kept in memory, evicting the least
+     * recently used results if needed. 0 turns the memory tier off.
+     * @param bytes memory limit in bytes
+     */
+    public void SetMemoryLimit(long bytes) {
+        synchronized (memory) {
+            memoryLimit = bytes;
+            Evict();
+        }
+    }
+
+    public long GetCachedBytes() {
+        synchronized (memory) {
+            return cachedBytes;
+        }
+    }
+
+    /** @return number of lookups answered from memory */
+    public long GetMemoryHits() { return memoryHits.get(); }
+
+    /** @return number of lookups answered from the disk tier */
+    public long GetDiskHits() { return diskHits.get(); }
+
+    /** @return number of lookups that had to run the pipeline */
+    public long GetMisses() { return misses.get(); }
+
+    /** @return number of results dropped from memory to stay under the limit */
+    public long GetEvictions() { return evictions.get(); }
+
+    @Override
+    public String toString() {
+        long hits = GetMemoryHits() + GetDiskHits();
+        long lookups = hits + GetMisses();
+        return String.format("result cache: %d memory hits, %d disk hits, %d misses (%.1f%% hit rate), "
+                        + "%d evictions, %.1f MB in memory",
+                GetMemoryHits(), GetDiskHits(), GetMisses(), lookups == 0 ? 0 : 100.0 * hits / lookups,
+                GetEvictions(), GetCachedBytes() / 1e6);
+    }
+
+    /**
+     * Computes a result on a miss
+     */
+    private interface Computation {
+        Img Compute() throws IOException;
+    }
+
+    private Img Lookup(String key, Computation computation) throws IOException {
+        synchronized (memory) {
+            Img cached = memory.get(key);
+            if (cached != null) {
+                memoryHits.incrementAndGet();
+                return cached.Snapshot();
+            }
+        }
+
+        Path file = DiskFile(key);
+        Img result;
+        if (file != null && Files.isRegularFile(file)) {
+            diskHits.incrementAndGet();
+            result = ImageManipulator.LoadImage(file.toString());
+        }
+        else {
+            misses.incrementAndGet();
+            result = computation.Compute();
+            if (file != null) {
+                WritePng(result, file);
+            }
+        }
+
+        synchronized (memory) {
+            long bytes = Bytes(result);
+            if (bytes > memoryLimit || memory.containsKey(key)) {
+                return result;
+            }
+            memory.put(key, result);
+            cachedBytes += bytes;
+            Evict();
+        }
+        // the cached copy must never change, so the caller gets a snapshot of it
+        return result.Snapshot();
+    }
+
+    private void Evict() {
+        Iterator<Img> iterator = memory.values().iterator();
+        while (cachedBytes > memoryLimit && iterator.hasNext()) {
+            Img evicted = iterator.next();
+            cachedBytes -= Bytes(evicted);
+            iterator.remove();
+            // snapshots handed out keep the pixels until they are released too
+            evicted.Release();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the PNG under a temporary name first, so that other threads and
+     * processes never see a partly written file
+     */
+    private static void WritePng(Img image, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temporary = Files.createTempFile(file.getParent(), "partial", ".tmp");
+        try {
+            ImageManipulator.SaveImage(image, temporary.toString());
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private Path DiskFile(String key) {
+        if (diskDirectory == null) {
+            return null;
+        }
+        MessageDigest digest = NewDigest();
+        return diskDirectory.resolve(Hex(digest.digest(key.getBytes(StandardCharsets.UTF_8))) + ".png");
+    }
+
+    private static long Bytes(Img image) {
+        return 4L * image.GetWidth() * image.GetHeight();
+    }
+
+    private static MessageDigest NewDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    private static String Hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Static utility class that rotates packed pixel arrays (see Img.GetPixels) by
+ * multiples of 90 degrees.
+ *
+ * A 90 degree rotation reads the source along rows but writes the destination
+ * along columns, so a straightforward loop misses the cache on nearly every write
+ * once an image is bigger than the cache. These functions work on TILE x TILE
+ * blocks instead: both the source block and the destination block fit in the L1
+ * cache, so reads and writes stay cache-local.
+ */
+public class Rotation {
+    /**
+     * Side of a block in pixels. Two 64 x 64 blocks of ints take 32 KB.
+     */
+    public static final int TILE = 64;
+
+    /**
+     * Rotates rows [startRow, endRow) of the source 90 degrees clockwise into the
+     * destination. The destination is height wide and width tall.
+     * @param source packed source pixels, width x height
+     * @param width width of the source
+     * @param height height of the source
+     * @param destination array to write the rotated image to
+     * @param startRow first source row to rotate
+     * @param endRow source row after the last one to rotate
+     */
+    public static void Rotate90(int[] source, int width, int height, int[] destination, int startRow, int endRow) {
+        for (int tileY = startRow; tileY < endRow; tileY += TILE) {
+            int tileEndY = Math.min(tileY + TILE, endRow);
+            for (int tileX = 0; tileX < width; tileX += TILE) {
+                int tileEndX = Math.min(tileX + TILE, width);
+                for (int x = tileX; x < tileEndX; x++) {
+                    int target = x * height + (height - 1);
+                    for (int y = tileY; y < tileEndY; y++) {
+                        destination[target - y] = source[y * width + x];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rotates rows [startRow, endRow) of the source 270 degrees clockwise (90 degrees
+     * counterclockwise) into the destination. The destination is height wide and
+     * width tall.
+     * @param source packed source pixels, width x height
+     * @param width width of the source
+     * @param height height of the source
+     * @param destination array to write the rotated image to
+     * @param startRow first source row to rotate
+     * @param endRow source row after the last one to rotate
+     */
+    public static void Rotate270(int[] source, int width, int height, int[] destination, int startRow, int endRow) {
+        for (int tileY = startRow; tileY < endRow; tileY += TILE) {
+            int tileEndY = Math.min(tileY + TILE, endRow);
+            for (int tileX = 0; tileX < width; tileX += TILE) {
+                int tileEndX = Math.min(tileX + TILE, width);
+                for (int x = tileX; x < tileEndX; x++) {
+                    int target = (width - 1 - x) * height;
+                    for (int y = tileY; y < tileEndY; y++) {
+                        destination[target + y] = source[y * width + x];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rotates rows [startRow, endRow) of the source 180 degrees into the destination,
+     * which has the same size as the source. Both sides are walked sequentially, so
+     * this needs no blocking.
+     * @param source packed source pixels, width x height
+     * @param width width of the source
+     * @param height height of the source
+     * @param destination array to write the rotated image to
+     * @param startRow first source row to rotate
+     * @param endRow source row after the last one to rotate
+     */
+    public static void Rotate180(int[] source, int width, int height, int[] destination, int startRow, int endRow) {
+        int last = width * height - 1;
+        for (int i = startRow * width; i < endRow * width; i++) {
+            destination[last - i] = source[i];
+        }
+    }
+
+    /**
+     * Rotates a size x size image 90 degrees clockwise without a second array:
+     * transpose, then mirror each row
+     * @param pixels packed pixels of a square image
+     * @param size width and height of the image
+     */
+    public static void Rotate90InPlace(int[] pixels, int size) {
+        Transpose(pixels, size);
+        for (int y = 0; y < size; y++) {
+            Reverse(pixels, y * size, (y + 1) * size - 1);
+        }
+    }
+
+    /**
+     * Rotates a size x size image 270 degrees clockwise without a second array:
+     * transpose, then mirror the order of the rows
+     * @param pixels packed pixels of a square image
+     * @param size width and height of the image
+     */
+    public static void Rotate270InPlace(int[] pixels, int size) {
+        Transpose(pixels, size);
+        for (int top = 0, bottom = size - 1; top < bottom; top++, bottom--) {
+            for (int x = 0; x < size; x++) {
+                int tmp = pixels[top * size + x];
+                pixels[top * size + x] = pixels[bottom * size + x];
+                pixels[bottom * size + x] = tmp;
+            }
+        }
+    }
+
+    /**
+     * Rotates an image of any size 180 degrees without a second array
+     * @param pixels packed pixels
+     * @param count number of pixels in the image
+     */
+    public static void Rotate180InPlace(int[] pixels, int count) {
+        Reverse(pixels, 0, count - 1);
+    }
+
+    /**
+     * Transposes a square image in place, swapping the blocks above the diagonal
+     * with the blocks below it one pair at a time
+     */
+    private static void Transpose(int[] pixels, int size) {
+        for (int tileY = 0; tileY < size; tileY += TILE) {
+            int tileEndY = Math.min(tileY + TILE, size);
+            for (int tileX = tileY; tileX < size; tileX += TILE) {
+                int tileEndX = Math.min(tileX + TILE, size);
+                for (int y = tileY; y < tileEndY; y++) {
+                    // on the diagonal block only swap the part above the diagonal
+                    for (int x = Math.max(tileX, y + 1); x < tileEndX; x++) {
+                        int a = y * size + x;
+                        int b = x * size + y;
+                        int tmp = pixels[a];
+                        pixels[a] = pixels[b];
+                        pixels[b] = tmp;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void Reverse(int[] pixels, int from, int to) {
+        for (; from < to; from++, to--) {
+            int tmp = pixels[from];
+            pixels[from] = pixels[to];
+            pixels[to] = tmp;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.Locale;
+
+/**
+ * Output format and encoder settings for Img.Save and ImageManipulator.SaveImage.
+ * Setters return the options, so they can be chained:
+ *
+ *     ImageManipulator.SaveImage(image, "out.jpg", SaveOptions.Jpeg(0.85f).SetProgressive(true));
+ *
+ * PNGs with the ADAPTIVE filter, the default, are written by ImageIO, which picks a
+ * filter for every row. With any other filter they are written by PngEncoder, which
+ * uses that one filter for every row and is considerably faster. FastPng() is meant
+ * for intermediate files, where encode time matters more than size.
+ *
+ * Raw() writes the pixels uncompressed for the fastest round trip; see RawImage.
+ * JPEG and the other formats are written by ImageIO.
+ */
+public class SaveOptions {
+    /**
+     * How PNG rows are filtered before compression; see the PNG specification
+     */
+    public enum PngFilter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** ImageIO chooses for every row */
+        ADAPTIVE
+    }
+
+    private final String format;
+    private int compressionLevel = -1;
+    private PngFilter filter = PngFilter.ADAPTIVE;
+    private boolean huffmanOnly;
+    private float quality = -1;
+    private boolean progressive;
+
+    private SaveOptions(String format) {
+        this.format = format;
+    }
+
+    /**
+     * @return PNG with ImageIO's default settings
+     */
+    public static SaveOptions Png() {
+        return new SaveOptions("png");
+    }
+
+    /**
+     * PNG that encodes several times faster than Png(), and on photos is usually
+     * smaller too: every row gets the UP filter and is compressed with Huffman
+     * coding only, skipping deflate's search for repeated strings
+     * @return fast PNG settings
+     */
+    public static SaveOptions FastPng() {
+        return Png().SetFilter(PngFilter.UP).SetCompressionLevel(1).SetHuffmanOnly(true);
+    }
+
+    /**
+     * Raw pixels with a small header (see RawImage), which take no time to encode
+     * or load but aren't compressed at all, for intermediate files
+     * @return raw image settings
+     */
+    public static SaveOptions Raw() {
+        return new SaveOptions(RawImage.FORMAT);
+    }
+
+    /**
+     * @param quality JPEG quality, 0 to 1
+     * @return JPEG with the given quality
+     */
+    public static SaveOptions Jpeg(float quality) {
+        return new SaveOptions("jpeg").SetQuality(quality);
+    }
+
+    /**
+     * Default settings for any format ImageIO can write
+     * @param format format name, such as "png", "jpg" or "bmp"
+     * @return settings for the format
+     */
+    public static SaveOptions Of(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        return new SaveOptions(name.equals("jpg") ? "jpeg" : name);
+    }
+
+    /**
+     * @return ImageIO format name, such as "png" or "jpeg"
+     */
+    public String GetFormat() { return format; }
+
+    /**
+     * @return usual file name extension for the format, without the dot
+     */
+    public String GetExtension() {
+        return format.equals("jpeg") ? "jpg" : format;
+    }
+
+    public int GetCompressionLevel() { return compressionLevel; }
+
+    /**
+     * Sets the PNG deflate level
+     * @param level 0 (no compression, fastest) to 9 (smallest), or -1 for the encoder's default
+     * @return these options
+     */
+    public SaveOptions SetCompressionLevel(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+        }
+        compressionLevel = level;
+        return this;
+    }
+
+    public PngFilter GetFilter() { return filter; }
+
+    /**
+     * Sets the PNG row filter
+     * @param filter filter for every row, or ADAPTIVE to let ImageIO choose
+     * @return these options
+     */
+    public SaveOptions SetFilter(PngFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public boolean IsHuffmanOnly() { return huffmanOnly; }
+
+    /**
+     * Sets whether PNG data is compressed with Huffman coding only. Only applies to
+     * filters other than ADAPTIVE.
+     * @param huffmanOnly true to skip deflate's search for repeated strings
+     * @return these options
+     */
+    public SaveOptions SetHuffmanOnly(boolean huffmanOnly) {
+        this.huffmanOnly = huffmanOnly;
+        return this;
+    }
+
+    public float GetQuality() { return quality; }
+
+    /**
+     * Sets the JPEG quality
+     * @param quality 0 to 1, or -1 for the encoder's default
+     * @return these options
+     */
+    public SaveOptions SetQuality(float quality) {
+        if (quality != -1 && (quality < 0 || quality > 1)) {
+            throw new IllegalArgumentException("Quality must be between 0 and 1: " + quality);
+        }
+        this.quality = quality;
+        return this;
+    }
+
+    public boolean IsProgressive() { return progressive; }
+
+    /**
+     * Sets whether JPEGs are progressive
+     * @param progressive true for a progressive JPEG
+     * @return these options
+     */
+    public SaveOptions SetProgressive(boolean progressive) {
+        this.progressive = progressive;
+        return this;
+    }
+
+    /**
+     * Whether PngEncoder writes these options instead of ImageIO
+     */
+    boolean UsesPngEncoder() {
+        return format.equals("png") && filter != PngFilter.ADAPTIVE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(format);
+        if (format.equals("png")) {
+            text.append(" filter=").append(filter.name().toLowerCase(Locale.ROOT));
+            if (compressionLevel >= 0) {
+                text.append(" level=").append(compressionLevel);
+            }
+            if (huffmanOnly && UsesPngEncoder()) {
+                text.append(" huffman-only");
+            }
+        }
+        if (quality >= 0) {
+            text.append(" quality=").append(quality);
+        }
+        if (progressive) {
+            text.append(" progressive");
+        }
+        return text.toString();
+    }
+}
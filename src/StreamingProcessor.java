@@ -0,0 +1,390 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Applies a FilterPipeline to an image file without ever holding the whole image
+ * in memory, for images too big for the heap. The source is read in horizontal
+ * strips through an ImageReader with a source region, each strip is run through
+ * the pipeline, and the rows are handed to the PNG ImageWriter as it asks for them.
+ * Peak memory is a few strips rather than the whole image.
+ *
+ * Only point-wise steps and BW can be streamed; rotate and instagram need the
+ * whole image. A BW step needs the median luminance of the image as it looks at
+ * that point in the pipeline, which takes two extra reads of the source: one to
+ * build a LuminanceHistogram, and one to count the colors in the range that holds
+ * the median.
+ *
+ * Most ImageReaders decode from the top of the file for every strip, so decoding
+ * time grows with the number of strips; strips should be as tall as memory allows.
+ */
+public class StreamingProcessor {
+    /**
+     * Pixels per strip when no strip height is given: 4M pixels, or 16 MB per buffer
+     */
+    public static final int DEFAULT_STRIP_PIXELS = 1 << 22;
+
+    private final FilterPipeline pipeline;
+    private final int stripHeight;
+
+    /**
+     * Creates a processor with strips of about DEFAULT_STRIP_PIXELS pixels
+     * @param pipeline filters to apply
+     */
+    public StreamingProcessor(FilterPipeline pipeline) {
+        this(pipeline, 0);
+    }
+
+    /**
+     * Creates a processor
+     * @param pipeline filters to apply; may only hold point-wise steps and BW, not
+     *      limited to a region
+     * @param stripHeight rows per strip, or 0 to size strips automatically
+     */
+    public StreamingProcessor(FilterPipeline pipeline, int stripHeight) {
+        if (stripHeight < 0) {
+            throw new IllegalArgumentException("Strip height must not be negative: " + stripHeight);
+        }
+        for (FilterPipeline.Step step : pipeline.GetSteps()) {
+            if (!step.IsPointWise() && !step.GetName().equals("bw")) {
+                throw new IllegalArgumentException("Step can't be streamed: " + step.GetName());
+            }
+            if (step.GetRegion() != null) {
+                throw new IllegalArgumentException("Step limited to a region can't be streamed: " + step);
+            }
+        }
+        this.pipeline = pipeline;
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * Reads the input image strip by strip, applies the pipeline, and writes the
+     * result to outputPath as a PNG
+     * @param inputPath image to read, in any format ImageIO can read
+     * @param outputPath path to write the PNG to
+     * @throws IOException
+     */
+    public void Process(String inputPath, String outputPath) throws IOException {
+        try (StripReader reader = new StripReader(new File(inputPath))) {
+            int rows = stripHeight > 0 ? stripHeight : Math.max(1, DEFAULT_STRIP_PIXELS / reader.width);
+
+            // resolve every BW step into a threshold, in order, since each one
+            // depends on the result of the steps before it
+            List<PixelOperation> operations = new ArrayList<>();
+            for (FilterPipeline.Step step : pipeline.GetSteps()) {
+                if (step.IsPointWise()) {
+                    operations.add(step.GetOperation());
+                }
+                else {
+                    double median = MedianLuminance(reader, rows, operations.toArray(new PixelOperation[0]));
+                    operations.add(pixel -> PixelOperations.BlackOrWhite(pixel, median));
+                }
+            }
+
+            StripImage output = new StripImage(reader, rows, operations.toArray(new PixelOperation[0]));
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+            if (!writers.hasNext()) {
+                throw new IOException("No PNG writer available");
+            }
+            ImageWriter writer = writers.next();
+            File outputFile = new File(outputPath);
+            outputFile.delete();
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(outputFile)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(output, null, null), null);
+            }
+            finally {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Finds the median luminance of the image after the given operations, reading
+     * the source twice: once for the histogram, then once to count the distinct
+     * colors in the range that holds the median
+     */
+    private static double MedianLuminance(StripReader reader, int rows, PixelOperation[] operations) throws IOException {
+        LuminanceHistogram histogram = new LuminanceHistogram();
+        int[] strip = null;
+        for (int y = 0; y < reader.height; y += rows) {
+            int stripRows = Math.min(rows, reader.height - y);
+            strip = reader.Read(y, stripRows, strip, operations);
+            histogram.Add(strip, 0, stripRows * reader.width);
+        }
+        if (histogram.GetTotal() == 0) {
+            return 0;
+        }
+
+        long rank = histogram.GetTotal() / 2;
+        int bin = histogram.BinOfRank(rank);
+        ColorCounts counts = new ColorCounts();
+        for (int y = 0; y < reader.height; y += rows) {
+            int stripRows = Math.min(rows, reader.height - y);
+            strip = reader.Read(y, stripRows, strip, operations);
+            for (int i = 0; i < stripRows * reader.width; i++) {
+                if (LuminanceHistogram.BinOf(PixelOperations.Luminance(strip[i])) == bin) {
+                    counts.Add(strip[i] & 0x00FFFFFF);
+                }
+            }
+        }
+        return counts.LuminanceOfRank(rank - histogram.CountBelow(bin));
+    }
+
+    /**
+     * Reads horizontal strips of an image file as packed pixels
+     */
+    private static class StripReader implements AutoCloseable {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final boolean hasAlpha;
+
+        StripReader(File file) throws IOException {
+            stream = ImageIO.createImageInputStream(file);
+            if (stream == null) {
+                throw new IOException("Can't open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IOException("Unsupported image format: " + file);
+            }
+            reader = readers.next();
+            // not seek-forward-only, so that the image can be read more than once
+            reader.setInput(stream, false, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            hasAlpha = reader.getRawImageType(0) != null
+                    && reader.getRawImageType(0).getColorModel().hasAlpha();
+        }
+
+        /**
+         * Reads rows [y, y + rows) and applies the operations to them
+         * @param buffer array to reuse, or null to allocate one
+         * @return packed pixels of the strip
+         */
+        int[] Read(int y, int rows, int[] buffer, PixelOperation[] operations) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            BufferedImage strip = reader.read(0, param);
+            int count = width * rows;
+            if (buffer == null || buffer.length < count) {
+                buffer = new int[count];
+            }
+            strip.getRGB(0, 0, width, rows, buffer, 0, width);
+            for (PixelOperation operation : operations) {
+                for (int i = 0; i < count; i++) {
+                    buffer[i] = operation.Apply(buffer[i]);
+                }
+            }
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /**
+     * A RenderedImage whose rows are produced on demand, one strip at a time. The PNG
+     * writer asks for one row at a time from top to bottom, so only the current strip
+     * is ever in memory. Each strip is one tile, for callers that go by tiles.
+     */
+    private static class StripImage implements RenderedImage {
+        private final StripReader reader;
+        private final int rows;
+        private final PixelOperation[] operations;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        private int[] strip;
+        private int stripY = -1;
+        private int stripRows;
+        private WritableRaster stripRaster;
+
+        StripImage(StripReader reader, int rows, PixelOperation[] operations) {
+            this.reader = reader;
+            this.rows = rows;
+            this.operations = operations;
+            colorModel = new BufferedImage(1, 1, reader.hasAlpha
+                    ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB).getColorModel();
+            sampleModel = colorModel.createCompatibleSampleModel(reader.width, Math.min(rows, reader.height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            if (stripY < 0 || rect.y < stripY || rect.y + rect.height > stripY + stripRows) {
+                LoadStrip(rect.y, rect.height);
+            }
+            return stripRaster.createChild(rect.x, rect.y, rect.width, rect.height, rect.x, rect.y, null);
+        }
+
+        private void LoadStrip(int y, int minRows) {
+            stripRows = Math.min(Math.max(rows, minRows), reader.height - y);
+            try {
+                strip = reader.Read(y, stripRows, strip, operations);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Failed to read rows " + y + " to " + (y + stripRows), e);
+            }
+            stripY = y;
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) colorModel
+                    .createCompatibleSampleModel(reader.width, stripRows);
+            stripRaster = Raster.createWritableRaster(model, new DataBufferInt(strip, strip.length), new Point(0, y));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, reader.width, reader.height));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int y = tileY * rows;
+            if (tileX != 0 || tileY < 0 || y >= reader.height) {
+                throw new IllegalArgumentException("No such tile: " + tileX + ", " + tileY);
+            }
+            return getData(new Rectangle(0, y, reader.width, Math.min(rows, reader.height - y)));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(reader.width, reader.height);
+            }
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, reader.width, reader.height));
+            // a strip at a time, so no more than one is read at once
+            for (int y = bounds.y; y < bounds.y + bounds.height; y += rows) {
+                int stripHeight = Math.min(rows, bounds.y + bounds.height - y);
+                raster.setRect(getData(new Rectangle(bounds.x, y, bounds.width, stripHeight)));
+            }
+            return raster;
+        }
+
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
+        @Override public ColorModel getColorModel() { return colorModel; }
+        @Override public SampleModel getSampleModel() { return sampleModel; }
+        @Override public int getWidth() { return reader.width; }
+        @Override public int getHeight() { return reader.height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return 1; }
+        @Override public int getNumYTiles() { return (reader.height + rows - 1) / rows; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return reader.width; }
+        @Override public int getTileHeight() { return Math.min(rows, reader.height); }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+    }
+
+    /**
+     * Counts how often each 24-bit color occurs, in an open addressing hash table.
+     * Holds only the colors in one luminance range, so it stays small.
+     */
+    private static class ColorCounts {
+        private static final int EMPTY = -1;
+
+        private int[] colors = NewTable(1 << 10);
+        private long[] counts = new long[1 << 10];
+        private int size;
+
+        private static int[] NewTable(int capacity) {
+            int[] table = new int[capacity];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        void Add(int color) {
+            if (size * 2 >= colors.length) {
+                Grow();
+            }
+            int mask = colors.length - 1;
+            int slot = (color * 0x9E3779B9) >>> 7 & mask;
+            while (colors[slot] != EMPTY && colors[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+            if (colors[slot] == EMPTY) {
+                colors[slot] = color;
+                size++;
+            }
+            counts[slot]++;
+        }
+
+        private void Grow() {
+            int[] oldColors = colors;
+            long[] oldCounts = counts;
+            colors = NewTable(oldColors.length * 2);
+            counts = new long[oldColors.length * 2];
+            size = 0;
+            int mask = colors.length - 1;
+            for (int i = 0; i < oldColors.length; i++) {
+                if (oldColors[i] == EMPTY) {
+                    continue;
+                }
+                int slot = (oldColors[i] * 0x9E3779B9) >>> 7 & mask;
+                while (colors[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                colors[slot] = oldColors[i];
+                counts[slot] = oldCounts[i];
+                size++;
+            }
+        }
+
+        /**
+         * Finds the luminance at the given rank among all counted pixels
+         */
+        double LuminanceOfRank(long rank) {
+            // sort the distinct colors by luminance, carrying their counts along
+            double[] luminance = new double[size];
+            long[] occurrences = new long[size];
+            Integer[] order = new Integer[size];
+            int n = 0;
+            for (int i = 0; i < colors.length; i++) {
+                if (colors[i] != EMPTY) {
+                    luminance[n] = PixelOperations.Luminance(colors[i]);
+                    occurrences[n] = counts[i];
+                    order[n] = n;
+                    n++;
+                }
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(luminance[a], luminance[b]));
+
+            long seen = 0;
+            for (int index : order) {
+                seen += occurrences[index];
+                if (rank < seen) {
+                    return luminance[index];
+                }
+            }
+            throw new IllegalStateException("Color counts do not add up");
+        }
+    }
+}
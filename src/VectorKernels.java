@@ -0,0 +1,187 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the grayscale, invert and sepia kernels, written with the
+ * incubating Java Vector API. Each one processes several packed pixels per
+ * instruction (8 with AVX-512, 4 with AVX2), and falls back to scalar code for the
+ * few pixels left over at the end of a range.
+ *
+ * Results are bit-identical to PixelOperations: the integer math is exact, and the
+ * sepia math does the same double operations in the same order, with the same
+ * truncating conversions, as the scalar code.
+ *
+ * Only use this class through PixelKernels, which checks that the
+ * jdk.incubator.vector module is present before touching it.
+ */
+public class VectorKernels {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    /**
+     * Ints with as many lanes as DOUBLES, so sepia can convert between the two. Every
+     * kernel uses this one int species, even though grayscale and invert could use
+     * twice the lanes: the JIT only compiles the Vector API into vector instructions
+     * reliably while its shared classes have seen a single vector shape.
+     */
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    /**
+     * Multiplying by this and shifting right by 17 divides by 3, exactly, for every
+     * sum of three channels (0 to 765). Vectors have no fast integer division.
+     */
+    private static final int DIVIDE_BY_3 = 0xAAAB;
+
+    private static final double TWO_TO_52 = 0x1p52;
+
+    /** Pixels per block in Sepia; a block of pixels and its result take 8 KB */
+    private static final int SEPIA_BLOCK = 1024;
+
+    /** Red, green and blue weights of each sepia channel, as in PixelOperations.Sepia */
+    private static final double[][] SEPIA_WEIGHTS = {
+            { 0.393, 0.769, 0.189 },
+            { 0.349, 0.686, 0.168 },
+            { 0.272, 0.534, 0.131 },
+    };
+
+    /**
+     * Runs PixelOperations.GrayScale over pixels [from, to)
+     */
+    public static void GrayScale(int[] pixels, int from, int to) {
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, i);
+            IntVector sum = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                    .add(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF))
+                    .add(pixel.and(0xFF));
+            IntVector avg = sum.mul(DIVIDE_BY_3).lanewise(VectorOperators.LSHR, 17);
+            pixel.and(0xFF000000)
+                    .or(avg.lanewise(VectorOperators.LSHL, 16))
+                    .or(avg.lanewise(VectorOperators.LSHL, 8))
+                    .or(avg)
+                    .intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            pixels[i] = PixelOperations.GrayScale(pixels[i]);
+        }
+    }
+
+    /**
+     * Runs PixelOperations.Invert over pixels [from, to)
+     */
+    public static void Invert(int[] pixels, int from, int to) {
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            IntVector.fromArray(INTS, pixels, i).lanewise(VectorOperators.XOR, 0x00FFFFFF).intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            pixels[i] = PixelOperations.Invert(pixels[i]);
+        }
+    }
+
+    /**
+     * Runs PixelOperations.Sepia over pixels [from, to)
+     */
+    public static void Sepia(int[] pixels, int from, int to) {
+        // One loop doing all three channels is too big for the JIT to compile into
+        // vector instructions, so each channel gets its own pass over a block of
+        // pixels small enough to stay in the L1 cache. The passes share one call site
+        // so that the JIT inlines SepiaChannel at most once.
+        int[] sepia = new int[Math.min(to - from, SEPIA_BLOCK)];
+        for (int start = from; start < to; start += SEPIA_BLOCK) {
+            int end = Math.min(start + SEPIA_BLOCK, to);
+            for (int i = start; i < end; i++) {
+                sepia[i - start] = pixels[i] & 0xFF000000;
+            }
+            for (int c = 0; c < 3; c++) {
+                double[] weights = SEPIA_WEIGHTS[c];
+                SepiaChannel(pixels, start, end, sepia, 16 - 8 * c, weights[0], weights[1], weights[2]);
+            }
+            System.arraycopy(sepia, 0, pixels, start, end - start);
+        }
+    }
+
+    /**
+     * Computes one sepia channel, (int)((int)(cr * r) + cg * g + cb * b) clamped to
+     * 0..255, for pixels [from, to), and ors it into sepia[0, to - from) shifted left
+     * by shift bits
+     */
+    private static void SepiaChannel(int[] pixels, int from, int to, int[] sepia, int shift,
+                                     double cr, double cg, double cb) {
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, i);
+            DoubleVector r = ToDouble(pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF));
+            DoubleVector g = ToDouble(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+            DoubleVector b = ToDouble(pixel.and(0xFF));
+            DoubleVector value = Truncate(Truncate(r.mul(cr)).add(g.mul(cg)).add(b.mul(cb))).min(255.0);
+            ToInt(value).lanewise(VectorOperators.LSHL, shift)
+                    .or(IntVector.fromArray(INTS, sepia, i - from))
+                    .intoArray(sepia, i - from);
+        }
+        for (; i < to; i++) {
+            int r = (pixels[i] >> 16) & 0xFF;
+            int g = (pixels[i] >> 8) & 0xFF;
+            int b = pixels[i] & 0xFF;
+            sepia[i - from] |= PixelOperations.Clamp((int) ((int) (cr * r) + (cg * g) + (cb * b))) << shift;
+        }
+    }
+
+    /**
+     * Runs PixelOperations.SepiaFast over pixels [from, to)
+     */
+    public static void SepiaFast(int[] pixels, int from, int to) {
+        int i = from;
+        for (int end = from + INTS.loopBound(to - from); i < end; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, i);
+            IntVector r = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = pixel.and(0xFF);
+            IntVector red = FixedPointChannel(r, g, b, 402, 787, 194);
+            IntVector green = FixedPointChannel(r, g, b, 357, 702, 172);
+            IntVector blue = FixedPointChannel(r, g, b, 279, 547, 134);
+            pixel.and(0xFF000000)
+                    .or(red.lanewise(VectorOperators.LSHL, 16))
+                    .or(green.lanewise(VectorOperators.LSHL, 8))
+                    .or(blue)
+                    .intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            pixels[i] = PixelOperations.SepiaFast(pixels[i]);
+        }
+    }
+
+    /**
+     * Saturate((cr * r + cg * g + cb * b - 512) >> 10), lane by lane
+     */
+    private static IntVector FixedPointChannel(IntVector r, IntVector g, IntVector b, int cr, int cg, int cb) {
+        return r.mul(cr).add(g.mul(cg)).add(b.mul(cb)).sub(512)
+                .lanewise(VectorOperators.ASHR, 10).max(0).min(255);
+    }
+
+    /**
+     * Rounds non-negative values below 2^51 toward zero, like an (int) cast does.
+     * Adding 2^52 leaves no room for a fraction, so the sum is the value rounded to
+     * the nearest whole number; where that rounded up, take one off.
+     */
+    private static DoubleVector Truncate(DoubleVector vector) {
+        DoubleVector rounded = vector.add(TWO_TO_52).sub(TWO_TO_52);
+        return rounded.sub(1.0, rounded.compare(VectorOperators.GT, vector));
+    }
+
+    private static DoubleVector ToDouble(IntVector vector) {
+        return (DoubleVector) vector.convertShape(VectorOperators.I2D, DOUBLES, 0);
+    }
+
+    /**
+     * Converts whole numbers from 0 to 2^31 - 1 to ints. The direct double to int
+     * conversion isn't compiled to vector instructions, so this adds 2^52, which
+     * leaves the value in the low bits of the double, and narrows those bits instead.
+     */
+    private static IntVector ToInt(DoubleVector vector) {
+        return (IntVector) vector.add(TWO_TO_52).reinterpretAsLongs()
+                .convertShape(VectorOperators.L2I, INTS, 0);
+    }
+}
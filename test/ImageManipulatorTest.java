@@ -1,14 +1,26 @@
+import org.junit.AfterClass;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Unit Tests for ImageManipulator
  */
 public class ImageManipulatorTest {
+    /** Pool for the tests that run filters in parallel, whatever the machine's core count */
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutDownPool() {
+        POOL.shutdown();
+    }
+
     @Test
     public void loadImage() throws Exception {
         // arrange
@@ -104,6 +116,43 @@ public class ImageManipulatorTest {
         assertTrue(CompareImages(expected, actual));
     }
 
+    @Test
+    public void rotateImageInPlace() throws Exception {
+        // arrange
+        // odd sizes, so that the blocks of Rotation don't divide the image evenly
+        Img square = NumberedImage(133, 133);
+        Img wide = NumberedImage(141, 77);
+        Img shared = wide.Snapshot();
+
+        // act
+        Img[] rotated = new Img[3];
+        Img[] inPlace = new Img[3];
+        for (int i = 0; i < 3; i++) {
+            rotated[i] = ImageManipulator.RotateImage(square, 90 * (i + 1));
+            inPlace[i] = ImageManipulator.RotateImage(square.Snapshot(), 90 * (i + 1), true);
+        }
+        Img wideRotated = ImageManipulator.RotateImage(wide, 180);
+        Img wideInPlace = ImageManipulator.RotateImage(NumberedImage(141, 77), 180, true);
+        try {
+            ImageManipulator.RotateImage(shared, 90, true);
+            fail("only square images can be rotated 90 degrees in place");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // assert
+        for (int i = 0; i < 3; i++) {
+            assertEquals(133, inPlace[i].GetWidth());
+            assertArrayEquals(rotated[i].GetReadOnlyPixels(), inPlace[i].GetReadOnlyPixels());
+        }
+        assertEquals(0xFF000000 | (76 * 141 + 140), wideInPlace.GetPixel(0, 0));
+        assertArrayEquals(Arrays.copyOf(wideRotated.GetReadOnlyPixels(), 141 * 77),
+                Arrays.copyOf(wideInPlace.GetReadOnlyPixels(), 141 * 77));
+        // the check comes before any pixel is copied
+        assertTrue(shared.IsShared());
+    }
+
     @Test
     public void instagramFilter() throws Exception {
         // arrange
@@ -156,10 +205,767 @@ public class ImageManipulatorTest {
         assertTrue(CompareImages(expected, actual));
     }
 
+    @Test
+    public void parallelModeMatchesSequential() throws Exception {
+        // arrange
+        ExecutionMode parallel = ExecutionMode.Parallel(POOL, 7);
+
+        // act / assert
+        assertArrayEquals(ImageManipulator.ConvertToGrayScale(LoadImage("testresources/testImage.jpg"), ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.ConvertToGrayScale(LoadImage("testresources/testImage.jpg"), parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.InvertImage(LoadImage("testresources/testImage.jpg"), ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.InvertImage(LoadImage("testresources/testImage.jpg"), parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.ConvertToSepia(LoadImage("testresources/testImage.jpg"), ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.ConvertToSepia(LoadImage("testresources/testImage.jpg"), parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.ConvertToBW(LoadImage("testresources/testImage.jpg"), ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.ConvertToBW(LoadImage("testresources/testImage.jpg"), parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.SetHue(LoadImage("testresources/testImage.jpg"), 200, ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.SetHue(LoadImage("testresources/testImage.jpg"), 200, parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.SetSaturation(LoadImage("testresources/testImage.jpg"), .2, ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.SetSaturation(LoadImage("testresources/testImage.jpg"), .2, parallel).GetPixels());
+        assertArrayEquals(ImageManipulator.SetLightness(LoadImage("testresources/testImage.jpg"), .5, ExecutionMode.Sequential()).GetPixels(),
+                ImageManipulator.SetLightness(LoadImage("testresources/testImage.jpg"), .5, parallel).GetPixels());
+    }
+
+    @Test
+    public void pipelineMatchesSequentialFilters() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/testImage.jpg");
+        expected = ImageManipulator.ConvertToSepia(expected);
+        expected = ImageManipulator.SetSaturation(expected, .2);
+        expected = ImageManipulator.ConvertToBW(expected);
+        expected = ImageManipulator.InvertImage(expected);
+        expected = ImageManipulator.SetLightness(expected, .5);
+        FilterPipeline pipeline = new FilterPipeline().Sepia().Saturation(.2).BW().Invert().Lightness(.5);
+
+        // act
+        Img actual = pipeline.Apply(LoadImage("testresources/testImage.jpg"));
+
+        // assert
+        assertTrue(CompareImages(expected, actual));
+        assertEquals("sepia -> saturation(0.2) -> bw -> invert -> lightness(0.5)", pipeline.toString());
+    }
+
+    @Test
+    public void optimizeComposesColorSetters() throws Exception {
+        // arrange
+        Region region = Region.Rectangle(30, 20, 300, 200);
+        Img expected = LoadImage("testresources/testImage.jpg");
+        expected = ImageManipulator.SetSaturation(expected, .3, region, ExecutionMode.Sequential());
+        expected = ImageManipulator.SetLightness(expected, 0, region, ExecutionMode.Sequential());
+        expected = ImageManipulator.SetHue(expected, 40, region, ExecutionMode.Sequential());
+        expected = ImageManipulator.SetHue(expected, 250, region, ExecutionMode.Sequential());
+        FilterPipeline pipeline = new FilterPipeline().Saturation(.3).Lightness(0).Hue(40).Hue(250).Within(region);
+
+        // act
+        FilterPipeline optimized = pipeline.Optimize();
+        Img actual = optimized.Apply(LoadImage("testresources/testImage.jpg"));
+
+        // assert
+        assertEquals(1, optimized.GetSteps().size());
+        assertEquals("saturation(0.3) + lightness(0) + hue(40) + hue(250) in " + region, optimized.toString());
+        assertTrue(CompareImages(expected, actual));
+    }
+
+    @Test
+    public void streamingMatchesInMemory() throws Exception {
+        // arrange
+        Img expected = new FilterPipeline().Saturation(.2).BW().Sepia().Invert().BW()
+                .Apply(LoadImage("testresources/testImage.jpg"));
+        StreamingProcessor processor = new StreamingProcessor(
+                new FilterPipeline().Saturation(.2).BW().Sepia().Invert().BW(), 37);
+        String savePath = "testresources/streamedImage.png";
+
+        // act
+        processor.Process("testresources/testImage.jpg", savePath);
+        Img actual = LoadImage(savePath);
+
+        // assert
+        assertTrue(CompareImages(expected, actual));
+
+        File f = new File(savePath);
+        f.delete();
+    }
+
+    @Test
+    public void simdKernelsMatchScalar() throws Exception {
+        assumeTrue(PixelKernels.IsSimdAvailable());
+
+        // arrange: every 24-bit color, with varying alpha
+        int[] colors = new int[1 << 24];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = (i * 0x9E) << 24 | i;
+        }
+        int from = 3;
+        int to = colors.length - 5;
+        PixelOperation[] scalar = { PixelOperations::GrayScale, PixelOperations::Invert, PixelOperations::Sepia,
+                PixelOperations::SepiaFast };
+
+        for (int k = 0; k < scalar.length; k++) {
+            int[] expected = colors.clone();
+            int[] actual = colors.clone();
+
+            // act
+            for (int i = from; i < to; i++) {
+                expected[i] = scalar[k].Apply(expected[i]);
+            }
+            switch (k) {
+                case 0: VectorKernels.GrayScale(actual, from, to); break;
+                case 1: VectorKernels.Invert(actual, from, to); break;
+                case 2: VectorKernels.Sepia(actual, from, to); break;
+                default: VectorKernels.SepiaFast(actual, from, to); break;
+            }
+
+            // assert
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void fastSepiaIsWithinOneOfExact() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        Img expected = LoadImage("testresources/sepia.png");
+
+        // act
+        Img actual = ImageManipulator.ConvertToSepia(start, true);
+        int maxError = 0;
+        for (int color = 0; color < 1 << 24; color++) {
+            int exact = PixelOperations.Sepia(color);
+            int fast = PixelOperations.SepiaFast(color);
+            for (int shift = 0; shift <= 16; shift += 8) {
+                maxError = Math.max(maxError, Math.abs(((exact >> shift) & 0xFF) - ((fast >> shift) & 0xFF)));
+            }
+        }
+
+        // assert
+        assertTrue(CompareImages(expected, actual));
+        assertTrue("max error " + maxError, maxError <= 1);
+    }
+
+    @Test
+    public void colorConversionsMatchRGBAndHSL() throws Exception {
+        // arrange: every 7th 24-bit color
+        int[] pixels = new int[(1 << 24) / 7 + 1];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | (i * 7);
+        }
+        double[] hsl = new double[3 * pixels.length];
+
+        // act
+        ColorConversions.RGBToHSL(pixels, 0, pixels.length, hsl, 0);
+        int[] roundTrip = pixels.clone();
+        ColorConversions.HSLToRGB(hsl, 0, roundTrip, 0, roundTrip.length);
+
+        // assert
+        for (int i = 0; i < pixels.length; i++) {
+            HSL expected = new RGB((pixels[i] >> 16) & 0xFF, (pixels[i] >> 8) & 0xFF, pixels[i] & 0xFF).ConvertToHSL();
+            assertEquals(expected.GetHue(), hsl[3 * i], 0);
+            assertEquals(expected.GetSaturation(), hsl[3 * i + 1], 0);
+            assertEquals(expected.GetLightness(), hsl[3 * i + 2], 0);
+
+            RGB back = expected.GetRGB();
+            assertEquals(0xFF000000 | (back.GetRed() << 16) | (back.GetGreen() << 8) | back.GetBlue(), roundTrip[i]);
+        }
+        double[] orange = new double[3];
+        ColorConversions.RGBToHSL(0xFF8000, orange, 0);
+        assertArrayEquals(new double[] { 30, 1, 0.5 }, orange, 0.002);
+        assertEquals(0x00FF00, ColorConversions.HSLToRGB(120, 1, 0.5));
+    }
+
+    @Test
+    public void snapshotsShareUntilWritten() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        int[] original = start.GetPixels().clone();
+
+        // act
+        Img gray = ImageManipulator.ConvertToGrayScale(start.Snapshot());
+        Img sepia = ImageManipulator.ConvertToSepia(start.Snapshot());
+        Img rotated = ImageManipulator.RotateImage(start.Snapshot());
+        Img edited = start.Snapshot();
+        int[] patch = new int[100 * 70];
+        Arrays.fill(patch, 0x123456);
+        edited.SetRegion(30, 40, 100, 70, patch);
+        edited.SetPixel(0, 0, 0xABCDEF);
+
+        // assert
+        assertTrue(CompareImages(LoadImage("testresources/grayscale.png"), gray));
+        assertTrue(CompareImages(LoadImage("testresources/sepia.png"), sepia));
+        assertTrue(CompareImages(LoadImage("testresources/rotate.png"), rotated));
+        assertArrayEquals(original, start.GetReadOnlyPixels());
+        assertTrue(edited.IsShared());
+        assertEquals(0xABCDEF, edited.GetPixel(0, 0));
+        assertEquals(0x123456, edited.GetPixel(129, 109));
+        assertEquals(original[110 * start.GetWidth() + 129], edited.GetPixel(129, 110));
+        int[] expected = original.clone();
+        for (int y = 40; y < 110; y++) {
+            Arrays.fill(expected, y * start.GetWidth() + 30, y * start.GetWidth() + 130, 0x123456);
+        }
+        expected[0] = 0xABCDEF;
+        assertArrayEquals(expected, edited.GetRegion(0, 0, start.GetWidth(), start.GetHeight(), null));
+        assertArrayEquals(expected, edited.GetPixels());
+        assertFalse(edited.IsShared());
+        assertArrayEquals(original, start.GetPixels());
+    }
+
+    @Test
+    public void regionFiltersOnSnapshotsCopyOnlyTheirTiles() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        int width = start.GetWidth();
+        int[] original = start.GetReadOnlyPixels().clone();
+        Region region = Region.Rectangle(100, 70, 50, 30);
+        int tilesAcross = (width + Img.TILE - 1) / Img.TILE;
+
+        // act
+        Img snapshot = start.Snapshot();
+        ImageManipulator.InvertImage(snapshot, region, ExecutionMode.Sequential());
+        int[] copied = snapshot.GetCopiedTiles();
+
+        // assert
+        // columns 100 to 149 and rows 70 to 99 lie in tile columns 1 and 2 of tile row 1
+        assertArrayEquals(new int[] { tilesAcross + 1, tilesAcross + 2 }, copied);
+        assertTrue(snapshot.IsShared());
+        assertEquals(0, start.GetCopiedTiles().length);
+        for (int y = 0; y < start.GetHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = original[y * width + x];
+                int expected = region.Contains(x, y) ? PixelOperations.Invert(pixel) : pixel;
+                assertEquals(expected, snapshot.GetPixel(x, y));
+            }
+        }
+        assertArrayEquals(original, start.GetReadOnlyPixels());
+    }
+
+    @Test
+    public void resultCacheReturnsEarlierResults() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        int[] original = start.GetPixels().clone();
+        FilterPipeline sepia = FilterPipeline.Parse("sepia");
+        File directory = new File("testresources/cache");
+        ResultCache cache = new ResultCache(64L << 20, directory.toPath());
+        String savePath = "testresources/cachedImage.png";
+
+        // act
+        Img first = cache.Apply(start, sepia);
+        Img second = cache.Apply(start, sepia);
+        ImageManipulator.InvertImage(second);
+        Img third = cache.Apply(start, sepia);
+        Img rotated = cache.Apply(start, FilterPipeline.Parse("rotate"));
+        ResultCache restarted = new ResultCache(0, directory.toPath());
+        Img fromDisk = restarted.Apply(start, sepia);
+        restarted.SaveImage(new File("testresources/testImage.jpg").toPath(), sepia, new File(savePath).toPath(),
+                ExecutionMode.Sequential());
+        restarted.SaveImage(new File("testresources/testImage.jpg").toPath(), sepia, new File(savePath).toPath(),
+                ExecutionMode.Sequential());
+        cache.SetMemoryLimit(0);
+
+        // assert
+        Img expected = LoadImage("testresources/sepia.png");
+        assertTrue(CompareImages(expected, first));
+        assertTrue(CompareImages(expected, third));
+        assertTrue(CompareImages(expected, fromDisk));
+        assertTrue(CompareImages(expected, LoadImage(savePath)));
+        assertTrue(CompareImages(LoadImage("testresources/rotate.png"), rotated));
+        assertArrayEquals(original, start.GetPixels());
+        assertEquals(2, cache.GetMemoryHits());
+        assertEquals(2, cache.GetMisses());
+        assertEquals(2, cache.GetEvictions());
+        assertEquals(0, cache.GetCachedBytes());
+        assertEquals(2, restarted.GetDiskHits());
+        assertEquals(1, restarted.GetMisses());
+
+        cache.Clear();
+        directory.delete();
+        new File(savePath).delete();
+    }
+
+    @Test
+    public void batchProcessorPipelinesFiles() throws Exception {
+        // arrange
+        File directory = new File("testresources/batch");
+        BatchProcessor processor = new BatchProcessor(
+                Arrays.asList(new File("testresources/testImage.jpg").toPath(),
+                        new File("testresources/missing.jpg").toPath(),
+                        new File("testresources/testImage.png").toPath()),
+                FilterPipeline.Parse("sepia"), directory.toPath(), 2, 1, 2, ExecutionMode.Sequential());
+
+        // act
+        java.util.List<BatchProcessor.FileResult> results = processor.Run();
+
+        // assert
+        Img expected = LoadImage("testresources/sepia.png");
+        assertNull(results.get(0).GetError());
+        assertNotNull(results.get(1).GetError());
+        assertNull(results.get(2).GetError());
+        assertTrue(CompareImages(expected, LoadImage(results.get(0).GetOutput().toString())));
+        assertTrue(CompareImages(expected, LoadImage(results.get(2).GetOutput().toString())));
+        assertEquals("testImage.jpg.png", results.get(0).GetOutput().getFileName().toString());
+        assertEquals("testImage.png.png", results.get(2).GetOutput().getFileName().toString());
+        long[] completed = { 3, 2, 2 };
+        long[] failed = { 1, 0, 0 };
+        for (int i = 0; i < 3; i++) {
+            PipelinedExecutor.Stage stage = processor.GetStages().get(i);
+            assertEquals(completed[i], stage.GetCompleted());
+            assertEquals(failed[i], stage.GetFailed());
+            assertEquals(0, stage.GetQueueDepth());
+            assertEquals(0, stage.GetActive());
+        }
+
+        assertTrue(results.get(0).GetOutput().toFile().delete());
+        assertTrue(results.get(2).GetOutput().toFile().delete());
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void saveOptionsWriteEveryFormat() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        Img withAlpha = new Img(start.GetWidth(), start.GetHeight(), true);
+        int[] argb = withAlpha.GetPixels();
+        int[] rgb = start.GetPixels();
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = (i * 31 << 24) | (rgb[i] & 0xFFFFFF);
+        }
+        String pngPath = "testresources/savedOptions.png";
+        String jpegPath = "testresources/savedOptions.jpg";
+
+        for (SaveOptions.PngFilter filter : SaveOptions.PngFilter.values()) {
+            for (Img image : new Img[] { start, withAlpha }) {
+                // act
+                ImageManipulator.SaveImage(image, pngPath, SaveOptions.Png().SetFilter(filter).SetCompressionLevel(1));
+                Img saved = LoadImage(pngPath);
+
+                // assert
+                assertEquals(image.HasAlpha(), saved.HasAlpha());
+                assertArrayEquals(image.GetPixels(), saved.GetPixels());
+            }
+        }
+
+        // act
+        ImageManipulator.SaveImage(start, pngPath, SaveOptions.FastPng());
+        Img fast = LoadImage(pngPath);
+        ImageManipulator.SaveImage(withAlpha, jpegPath, SaveOptions.Jpeg(0.9f).SetProgressive(true));
+        Img jpeg = LoadImage(jpegPath);
+
+        // assert
+        assertArrayEquals(start.GetPixels(), fast.GetPixels());
+        assertEquals(start.GetWidth(), jpeg.GetWidth());
+        assertFalse(jpeg.HasAlpha());
+
+        new File(pngPath).delete();
+        new File(jpegPath).delete();
+    }
+
+    @Test
+    public void rawImagesRoundTripAndFilterInPlace() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        Img withAlpha = new Img(3, 2, true);
+        int[] argb = withAlpha.GetPixels();
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0x11223344 * (i + 1);
+        }
+        String rawPath = "testresources/intermediate.raw";
+        String alphaPath = "testresources/intermediateAlpha.raw";
+
+        // act
+        ImageManipulator.SaveImage(start, rawPath, SaveOptions.Raw());
+        ImageManipulator.SaveImage(withAlpha, alphaPath, SaveOptions.Raw());
+        Img loaded = ImageManipulator.LoadImage(rawPath);
+        Img loadedAlpha = ImageManipulator.LoadImage(alphaPath);
+        RawImage.Apply(new File(rawPath).toPath(), FilterPipeline.Parse("sepia"), ExecutionMode.Parallel());
+        Img filtered = ImageManipulator.LoadImage(rawPath);
+
+        // assert
+        assertTrue(RawImage.IsRawImage(new File(rawPath).toPath()));
+        assertFalse(RawImage.IsRawImage(new File("testresources/testImage.png").toPath()));
+        assertEquals(RawImage.HEADER_SIZE + 4L * start.GetWidth() * start.GetHeight(), new File(rawPath).length());
+        assertArrayEquals(start.GetPixels(), loaded.GetPixels());
+        assertFalse(loaded.HasAlpha());
+        assertArrayEquals(argb, loadedAlpha.GetPixels());
+        assertTrue(loadedAlpha.HasAlpha());
+        assertTrue(CompareImages(LoadImage("testresources/sepia.png"), filtered));
+        try {
+            RawImage.Apply(new File(rawPath).toPath(), FilterPipeline.Parse("bw"), ExecutionMode.Sequential());
+            fail("bw needs the whole image");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        new File(rawPath).delete();
+        new File(alphaPath).delete();
+    }
+
+    @Test
+    public void metricsRecordOperations() throws Exception {
+        // arrange
+        LatencyHistogram histogram = new LatencyHistogram();
+        Img start = LoadImage("testresources/testImage.jpg");
+        long pixels = start.GetWidth() * (long) start.GetHeight();
+        Metrics.Reset();
+        Metrics.SetEnabled(true);
+
+        // act
+        for (long value = 1; value <= 100000; value++) {
+            histogram.Record(value);
+        }
+        ImageManipulator.ConvertToSepia(start);
+        ImageManipulator.ConvertToSepia(start);
+        FilterPipeline.Parse("grayscale,bw").Apply(start);
+        Metrics.SetEnabled(false);
+        ImageManipulator.ConvertToSepia(start);
+        Object report = java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new javax.management.ObjectName(Metrics.MBEAN_NAME), "Report");
+
+        // assert
+        assertEquals(100000, histogram.GetCount());
+        assertEquals(50000, histogram.GetPercentileNanos(50), 50000 / 16.0);
+        assertEquals(99000, histogram.GetPercentileNanos(99), 99000 / 16.0);
+        assertEquals(100000, histogram.GetPercentileNanos(100));
+        assertEquals(2, Metrics.Get("sepia").GetCount());
+        assertEquals(2 * pixels, Metrics.Get("sepia").GetPixels());
+        assertEquals(1, Metrics.Get("fused").GetCount());
+        assertEquals(1, Metrics.Get("bw").GetCount());
+        assertEquals(1, Metrics.Get("pipeline").GetCount());
+        assertTrue(Metrics.Get("sepia").GetLatency().GetMaxNanos() > 0);
+        assertEquals(Metrics.Report(), report);
+        assertTrue(report.toString().contains("sepia"));
+
+        Metrics.Reset();
+    }
+
+    @Test
+    public void pixelBufferPoolReusesReleasedBuffers() throws Exception {
+        // arrange
+        File directory = java.nio.file.Files.createTempDirectory("pool").toFile();
+        File png = new File(directory, "pooled.png");
+        File raw = new File(directory, "pooled.raw");
+        PixelBufferPool.SetEnabled(true);
+        PixelBufferPool.ResetCounters();
+        Img expected = new Img(500, 300, false);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 500; x++) {
+                expected.SetPixel(x, y, (x * 7 + y * 13) & 0xFFFFFF);
+            }
+        }
+
+        try {
+            // act
+            Img first = new Img(500, 300, false);
+            int[] buffer = first.GetPixels();
+            buffer[0] = 0xFFFFFF;
+            first.Release();
+            first.Release();
+            Img second = new Img(500, 300, true);
+            int[] reused = second.GetReadOnlyPixels();
+            int cleared = reused[0];
+            long threadHits = PixelBufferPool.GetThreadHits();
+            Img snapshot = second.Snapshot();
+            second.Release();
+            long releasesWhileShared = PixelBufferPool.GetReleases();
+            snapshot.Release();
+            Img rotated = ImageManipulator.RotateImage(ImageManipulator.RotateImage(expected, 90), 270);
+            expected.Save(png.getPath(), SaveOptions.FastPng());
+            expected.Save(raw.getPath(), SaveOptions.Raw());
+
+            // assert
+            assertEquals(PixelBufferPool.ClassSize(500 * 300), buffer.length);
+            assertTrue(buffer.length > 500 * 300);
+            assertSame(buffer, reused);
+            assertEquals(0, cleared);
+            assertEquals(1, threadHits);
+            assertEquals(1, releasesWhileShared);
+            assertEquals(2, PixelBufferPool.GetReleases());
+            assertTrue(PixelBufferPool.GetHitRate() > 0);
+            assertTrue(CompareImages(expected, rotated));
+            assertTrue(CompareImages(expected, LoadImage(png.getPath())));
+            assertTrue(CompareImages(expected, LoadImage(raw.getPath())));
+        }
+        finally {
+            PixelBufferPool.SetEnabled(false);
+            PixelBufferPool.ResetCounters();
+            png.delete();
+            raw.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void resizeImagesAndThumbnails() throws Exception {
+        // arrange
+        Img start = new Img(64, 48);
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                start.SetPixel(x, y, 0xFF000000 | (x * 4) << 16 | (y * 5) << 8 | ((x * y) & 0xFF));
+            }
+        }
+        Img gray = new Img(100, 80);
+        Arrays.fill(gray.GetPixels(), 0, 100 * 80, 0xFF336699);
+        Img expectedGray = new Img(37, 29);
+        Arrays.fill(expectedGray.GetPixels(), 0, 37 * 29, 0xFF336699);
+
+        // act
+        Img halved = ImageManipulator.ResizeImage(start, 32, 24, Resampler.Kernel.BOX, ExecutionMode.Parallel());
+        Img same = ImageManipulator.ResizeImage(start, 64, 48);
+        Img bilinear = ImageManipulator.ResizeImage(gray, 37, 29, Resampler.Kernel.BILINEAR, ExecutionMode.Sequential());
+        Img lanczos = ImageManipulator.ResizeImage(gray, 37, 29, Resampler.Kernel.LANCZOS, ExecutionMode.Parallel());
+        Img[] thumbnails = ImageManipulator.CreateThumbnails(new Img(1000, 500), new int[] { 100, 400, 50 },
+                Resampler.Kernel.LANCZOS, ExecutionMode.Sequential());
+        start.SetDisplayHeight(24);
+        java.awt.image.BufferedImage display = start.GetDisplayImage();
+        java.awt.image.BufferedImage unchanged = start.GetDisplayImage();
+        Arrays.fill(start.GetPixels(), 0, 64 * 48, 0xFFFF0000);
+        java.awt.image.BufferedImage changed = start.GetDisplayImage();
+
+        // assert
+        for (int y = 0; y < 24; y++) {
+            for (int x = 0; x < 32; x++) {
+                int red = (2 * x * 4 + (2 * x + 1) * 4 + 1) / 2;
+                assertEquals(red, halved.GetRGB(x, y).GetRed());
+            }
+        }
+        assertTrue(CompareImages(halved, ImageManipulator.ResizeImage(same, 32, 24, Resampler.Kernel.BOX,
+                ExecutionMode.Sequential())));
+        assertTrue(CompareImages(expectedGray, bilinear));
+        assertTrue(CompareImages(expectedGray, lanczos));
+        assertEquals(100, thumbnails[0].GetWidth());
+        assertEquals(50, thumbnails[0].GetHeight());
+        assertEquals(400, thumbnails[1].GetWidth());
+        assertEquals(25, thumbnails[2].GetHeight());
+        assertEquals(32, start.GetScaledWidth());
+        assertEquals(24, display.getHeight());
+        assertSame(display, unchanged);
+        assertEquals(0xFFFF0000, changed.getRGB(5, 5));
+    }
+
+    @Test
+    public void previewSessionRendersHistoryAtFullResolution() throws Exception {
+        // arrange
+        Img original = LoadImage("testresources/testImage.jpg");
+        Img unchanged = LoadImage("testresources/testImage.jpg");
+        Img expected = FilterPipeline.Parse("sepia,rotate,hue=200,invert").Apply(LoadImage("testresources/testImage.jpg"));
+        File saved = File.createTempFile("preview", ".png");
+
+        // act
+        Img preview;
+        Img firstRender;
+        Img lazyRender;
+        try (PreviewSession session = new PreviewSession(original, 100, true, ExecutionMode.Parallel());
+             PreviewSession lazy = new PreviewSession(original, 100, false, ExecutionMode.Sequential())) {
+            session.Apply(FilterPipeline.Parse("sepia,rotate"));
+            firstRender = session.Render();
+            session.Apply(FilterPipeline.Parse("hue=200"));
+            preview = session.Apply(new FilterPipeline().Invert());
+            session.Save(saved.getPath(), SaveOptions.FastPng());
+            lazy.Apply(FilterPipeline.Parse("sepia,rotate,hue=200,invert"));
+            lazyRender = lazy.Render();
+        }
+
+        // assert
+        assertEquals(100, preview.GetWidth());
+        assertEquals(original.GetWidth(), firstRender.GetHeight());
+        assertTrue(CompareImages(expected, LoadImage(saved.getPath())));
+        assertTrue(CompareImages(expected, lazyRender));
+        assertTrue(CompareImages(unchanged, original));
+
+        saved.delete();
+    }
+
+    @Test
+    public void lazyImagesDeferAndOptimizeFilters() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/testImage.jpg");
+        Img lazy = LoadImage("testresources/testImage.jpg");
+        lazy.SetLazy(true);
+        Metrics.Reset();
+        Metrics.SetEnabled(true);
+
+        // act
+        expected = ImageManipulator.ConvertToSepia(expected);
+        expected = ImageManipulator.SetHue(expected, 200);
+        expected = ImageManipulator.InvertImage(expected);
+        expected = ImageManipulator.InvertImage(expected);
+        expected = ImageManipulator.RotateImage(expected, 90);
+        expected = ImageManipulator.SetHue(expected, 100);
+        expected = ImageManipulator.RotateImage(expected, 90);
+        Metrics.Reset();
+        Img result = ImageManipulator.ConvertToSepia(lazy);
+        result = ImageManipulator.SetHue(result, 200);
+        result = ImageManipulator.InvertImage(result);
+        result = ImageManipulator.InvertImage(result);
+        result = ImageManipulator.RotateImage(result, 90);
+        result = ImageManipulator.SetHue(result, 100);
+        result = ImageManipulator.RotateImage(result, 90);
+        String plan = lazy.ExplainPending();
+        boolean ranEarly = Metrics.Get("pipeline") != null;
+        int[] expectedPixels = expected.GetPixels();
+        int[] lazyPixels = lazy.GetPixels();
+        Metrics.SetEnabled(false);
+
+        // assert
+        assertSame(lazy, result);
+        assertFalse(ranEarly);
+        assertTrue(plan, plan.contains("optimized to 2 passes"));
+        assertTrue(plan, plan.contains("1. fused: sepia, hue(200) + hue(100)"));
+        assertTrue(plan, plan.contains("2. rotate(180)"));
+        assertArrayEquals(expectedPixels, lazyPixels);
+        assertEquals(1, Metrics.Get("pipeline").GetCount());
+        assertNull(Metrics.Get("invert"));
+        assertEquals(1, FilterPipeline.Parse("rotate,rotate,rotate,rotate,grayscale,grayscale").Optimize().GetSteps().size());
+
+        Metrics.Reset();
+    }
+
+    @Test
+    public void editHistoryUndoesAndRedoesFromDeltas() throws Exception {
+        // arrange
+        Img original = LoadImage("testresources/testImage.jpg");
+        Img sepia = ImageManipulator.ConvertToSepia(original.Snapshot());
+        Img rotated = ImageManipulator.RotateImage(sepia.Snapshot());
+        Img image = original.Snapshot();
+        Img region = LoadImage("testresources/testImage.jpg");
+        EditHistory spilled = new EditHistory(0);
+        EditHistory inMemory = new EditHistory();
+
+        // act
+        Img before = image.Snapshot();
+        image = ImageManipulator.ConvertToSepia(image);
+        spilled.Record(before, image, new FilterPipeline().Sepia());
+        before = image.Snapshot();
+        image = ImageManipulator.RotateImage(image);
+        spilled.Record(before, image, new FilterPipeline().Rotate());
+        long onDisk = spilled.GetSpilledBytes();
+        Img undoneRotate = spilled.Undo(image).Snapshot();
+        Img undoneSepia = spilled.Undo(undoneRotate.Snapshot()).Snapshot();
+        Img redone = spilled.Redo(undoneSepia.Snapshot());
+        redone = spilled.Redo(redone);
+        String next = String.valueOf(spilled.PeekUndo());
+        spilled.close();
+
+        // only one tile changes, so only one is kept
+        before = region.Snapshot();
+        region.SetPixel(70, 70, 0xFF123456);
+        inMemory.Record(before, region, new FilterPipeline());
+        long oneTile = inMemory.GetMemoryBytes();
+        Img restored = inMemory.Undo(region);
+
+        // assert
+        assertTrue(onDisk > 0);
+        assertTrue(CompareImages(sepia, undoneRotate));
+        assertTrue(CompareImages(original, undoneSepia));
+        assertTrue(CompareImages(rotated, redone));
+        assertArrayEquals(original.GetReadOnlyPixels(), undoneSepia.GetReadOnlyPixels());
+        assertEquals("rotate", next);
+        assertFalse(spilled.CanRedo());
+        assertSame(region, restored);
+        assertArrayEquals(original.GetReadOnlyPixels(), restored.GetReadOnlyPixels());
+        assertEquals(4 * Img.TILE * Img.TILE, oneTile);
+        assertFalse(inMemory.CanUndo());
+        assertTrue(inMemory.CanRedo());
+        inMemory.close();
+    }
+
+    @Test
+    public void filtersOnlyChangeTheirRegion() throws Exception {
+        // arrange
+        Img original = LoadImage("testresources/testImage.jpg");
+        int width = original.GetWidth();
+        int[] before = original.GetReadOnlyPixels();
+        Region rectangle = Region.Rectangle(10, 20, 50, 30);
+        boolean[] checkers = new boolean[40 * 40];
+        for (int i = 0; i < checkers.length; i++) {
+            checkers[i] = (i / 40 + i % 40) % 2 == 0;
+        }
+        // partly outside the image, which is ignored
+        Region mask = Region.Mask(width - 20, 5, 40, 40, checkers);
+        boolean[] otherCheckers = new boolean[checkers.length];
+        for (int i = 0; i < checkers.length; i++) {
+            otherCheckers[i] = !checkers[i];
+        }
+        Region otherMask = Region.Mask(width - 20, 5, 40, 40, otherCheckers);
+        ExecutionMode mode = ExecutionMode.Parallel(POOL, 4);
+        Img crop = new Img(50, 30);
+        for (int y = 0; y < 30; y++) {
+            System.arraycopy(before, (y + 20) * width + 10, crop.GetPixels(), y * 50, 50);
+        }
+        Metrics.Reset();
+        Metrics.SetEnabled(true);
+
+        // act
+        Img gray = ImageManipulator.ConvertToGrayScale(original.Snapshot(), rectangle, mode);
+        long grayPixels = Metrics.Get("grayscale").GetPixels();
+        Img hue = ImageManipulator.SetHue(original.Snapshot(), 100, mask, mode);
+        Img bw = ImageManipulator.ConvertToBW(original.Snapshot(), rectangle, mode);
+        Img bwCrop = ImageManipulator.ConvertToBW(crop);
+        Img fused = new FilterPipeline().Sepia().Invert().Within(rectangle).Lightness(.4).Within(mask).Apply(original.Snapshot(), mode);
+        Img oneByOne = ImageManipulator.ConvertToSepia(original.Snapshot(), false, rectangle, mode);
+        oneByOne = ImageManipulator.InvertImage(oneByOne, rectangle, mode);
+        oneByOne = ImageManipulator.SetLightness(oneByOne, .4, mask, mode);
+        Img lazy = original.Snapshot();
+        lazy.SetLazy(true);
+        ImageManipulator.ConvertToSepia(lazy, false, rectangle, mode);
+        ImageManipulator.InvertImage(lazy, rectangle, mode);
+        ImageManipulator.SetLightness(lazy, .4, mask, mode);
+        Metrics.SetEnabled(false);
+
+        // assert
+        assertEquals(50 * 30, grayPixels);
+        assertEquals(20 * 40 / 2, Region.Clip(mask, width, original.GetHeight()).GetPixelCount());
+        ColorLookupTable table = ColorLookupTable.ForHue(100);
+        for (int y = 0; y < original.GetHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = before[y * width + x];
+                boolean inRectangle = rectangle.Contains(x, y);
+                int expectedGray = inRectangle ? PixelOperations.GrayScale(pixel) : pixel;
+                int expectedHue = mask.Contains(x, y) ? table.Apply(pixel) : pixel;
+                int expectedBW = inRectangle ? bwCrop.GetPixel(x - 10, y - 20) : pixel;
+                assertEquals(expectedGray, gray.GetPixel(x, y));
+                assertEquals(expectedHue, hue.GetPixel(x, y));
+                assertEquals(expectedBW, bw.GetPixel(x, y));
+            }
+        }
+        assertArrayEquals(oneByOne.GetReadOnlyPixels(), fused.GetReadOnlyPixels());
+        assertArrayEquals(oneByOne.GetReadOnlyPixels(), lazy.GetReadOnlyPixels());
+        // ResultCache keys on the pipeline's description
+        assertNotEquals(new FilterPipeline().Sepia().Within(mask).toString(),
+                new FilterPipeline().Sepia().Within(otherMask).toString());
+        assertEquals(new FilterPipeline().Sepia().Within(mask).toString(),
+                new FilterPipeline().Sepia().Within(Region.Mask(width - 20, 5, 40, 40, checkers)).toString());
+        try {
+            new FilterPipeline().Rotate().Within(rectangle);
+            fail("rotate can't be limited to a region");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Metrics.Reset();
+    }
+
     private Img LoadImage(String path) throws IOException {
         return new Img(path);
     }
 
+    /**
+     * Creates an image whose pixels each hold their own index, so that every pixel
+     * can be told apart
+     * @param width width of the image
+     * @param height height of the image
+     * @return the image
+     */
+    private Img NumberedImage(int width, int height) {
+        Img image = new Img(width, height);
+        int[] pixels = image.GetPixels();
+        for (int i = 0; i < width * height; i++) {
+            pixels[i] = 0xFF000000 | i;
+        }
+        return image;
+    }
+
     /**
      * Compares actual and expected images by comparing each individual pixel
      * in the actual image to the corresponding pixel in the expected image